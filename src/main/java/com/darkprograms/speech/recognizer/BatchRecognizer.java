@@ -0,0 +1,395 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.javaflacencoder.StreamConfiguration;
+
+import com.darkprograms.speech.util.RateLimiter;
+
+/**
+ * Recognizes many audio files with a bounded number of requests in flight.
+ * <p>Wave files are encoded to FLAC in memory right before they are uploaded, on the same worker
+ * in <code>.flac</code> are streamed from disk as they are, with the sample rate from their stream header.</p>
+ * in <code>.flac</code> are sent as they are with the sample rate from their stream header.</p>
+ * <p>Results are handed to a {@link Listener} in the order they complete. A file that fails does not stop
+ * the batch; its error is reported with its result. Once every file is done the throughput and latency
+ * of the batch are returned.</p>
+ */
+public class BatchRecognizer {
+
+	/**
+	 * Receives the results of a batch
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the thread that started the batch whenever a file has been recognized or has failed.
+		 * @param result The result of the file
+		 */
+		void onResult(Result result);
+
+	}
+
+	/**
+	 * The outcome of recognizing a single file
+	 */
+	public static class Result {
+
+		private final int index;
+		private final File file;
+		private final GoogleResponse response;
+		private final Exception error;
+		private final long latencyNanos;
+
+		private Result(int index, File file, GoogleResponse response, Exception error, long latencyNanos) {
+			this.index = index;
+			this.file = file;
+			this.response = response;
+			this.error = error;
+			this.latencyNanos = latencyNanos;
+		}
+
+		/**
+		 * Gets the position of the file in the submitted collection
+		 * @return The index of the file
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Gets the file that was recognized
+		 * @return The file
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Gets the response from Google
+		 * @return The response, or null if the file failed
+		 */
+		public GoogleResponse getResponse() {
+			return response;
+		}
+
+		/**
+		 * Gets the reason the file failed
+		 * @return The error, or null if the file was recognized
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		/**
+		 * Returns true if the file was recognized
+		 * @return True if there is a response
+		 */
+		public boolean isSuccessful() {
+			return error == null;
+		}
+
+		/**
+		 * Gets the time it took to encode and recognize the file, not counting the time spent queued
+		 * or waiting for the rate limit
+		 * @return The latency in milliseconds
+		 */
+		public double getLatencyMillis() {
+			return latencyNanos / 1e6;
+		}
+
+	}
+
+	/**
+	 * Throughput and latency of a finished batch
+	 */
+	public static class Statistics {
+
+		private final int count;
+		private final int failures;
+		private final long elapsedNanos;
+		private final long[] latencies;
+
+		private Statistics(int count, int failures, long elapsedNanos, long[] latencies) {
+			this.count = count;
+			this.failures = failures;
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = latencies;
+			Arrays.sort(this.latencies);
+		}
+
+		/**
+		 * Gets the number of files in the batch
+		 * @return The file count
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the number of files that failed
+		 * @return The failure count
+		 */
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Gets the wall clock time the batch took
+		 * @return The time in milliseconds
+		 */
+		public double getElapsedMillis() {
+			return elapsedNanos / 1e6;
+		}
+
+		/**
+		 * Gets the number of files completed per second
+		 * @return The throughput
+		 */
+		public double getThroughput() {
+			return elapsedNanos > 0 ? count * 1e9 / elapsedNanos : 0;
+		}
+
+		/**
+		 * Gets the mean latency of the files
+		 * @return The mean latency in milliseconds
+		 */
+		public double getMeanLatencyMillis() {
+			if(latencies.length == 0){
+				return 0;
+			}
+			double sum = 0;
+			for(long latency : latencies){
+				sum += latency;
+			}
+			return sum / latencies.length / 1e6;
+		}
+
+		/**
+		 * Gets a latency percentile of the files
+		 * @param percentile The percentile, between 0 and 100
+		 * @return The latency in milliseconds that the given percentage of files did not exceed
+		 */
+		public double getLatencyPercentileMillis(double percentile) {
+			if(latencies.length == 0){
+				return 0;
+			}
+			int index = (int)Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"%d files, %d failed in %.0f ms (%.2f files/s), latency mean %.0f ms, p50 %.0f ms, p95 %.0f ms, max %.0f ms",
+					count, failures, getElapsedMillis(), getThroughput(), getMeanLatencyMillis(),
+					getLatencyPercentileMillis(50), getLatencyPercentileMillis(95), getLatencyPercentileMillis(100));
+		}
+
+	}
+
+	/**
+	 * The recognizer the requests are sent with
+	 */
+	private final Recognizer recognizer;
+
+	/**
+	 * Maximum number of files encoded or uploaded at once
+	 */
+	private int concurrency = 4;
+
+	/**
+	 * Maximum number of uploads started per second, 0 for no limit
+	 */
+	private double requestsPerSecond = 0;
+
+	/**
+	 * Maximum number of results to return per file
+	 */
+	private int maxResults = 1;
+
+	/**
+	 * Constructor
+	 * @param recognizer The recognizer to send the requests with. Its language, API key, encoder and transport are used.
+	 */
+	public BatchRecognizer(Recognizer recognizer) {
+		this.recognizer = recognizer;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Sets the maximum number of files that are encoded or uploaded at once
+	 * @param concurrency The limit, at least 1
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	public double getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+
+	/**
+	 * Sets the maximum number of uploads started per second by a batch. This is on top of any
+	 * {@link RateLimiter} of the recognizer, which also limits uploads from outside the batch.
+	 * @param requestsPerSecond The rate limit, 0 for no limit
+	 */
+	public void setRequestsPerSecond(double requestsPerSecond) {
+		this.requestsPerSecond = Math.max(0, requestsPerSecond);
+	}
+
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * Sets the maximum number of results to return per file
+	 * @param maxResults The maximum number of results
+	 */
+	public void setMaxResults(int maxResults) {
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * Recognizes all files and blocks until every one of them has completed.
+	 * @param files Wave and FLAC files to recognize
+	 * @param listener Receives each result as it completes, may be null
+	 * @return The throughput and latency of the batch
+	 * @throws InterruptedException If the calling thread is interrupted. Files not yet started are skipped.
+	 */
+	public Statistics recognize(Collection<File> files, Listener listener) throws InterruptedException {
+		final LinkedBlockingQueue<Result> completed = new LinkedBlockingQueue<Result>();
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "BatchRecognizer-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final RateLimiter limiter = requestsPerSecond > 0 ? new RateLimiter(requestsPerSecond) : null;
+		long start = System.nanoTime();
+		int submitted = 0;
+		try {
+			for(final File file : files){
+				final int index = submitted++;
+				workers.execute(new Runnable() {
+					public void run() {
+						completed.add(process(index, file, limiter));
+					}
+				});
+			}
+			workers.shutdown();
+
+			long[] latencies = new long[submitted];
+			int failures = 0;
+			for(int i = 0; i < submitted; i++){
+				Result result = completed.take();
+				latencies[i] = result.latencyNanos;
+				if(!result.isSuccessful()){
+					failures++;
+				}
+				if(listener != null){
+					listener.onResult(result);
+				}
+			}
+			return new Statistics(submitted, failures, System.nanoTime() - start, latencies);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Recognizes all files and blocks until every one of them has completed.
+	 * @param files Wave and FLAC files to recognize
+	 * @return The results in the order they completed
+	 * @throws InterruptedException If the calling thread is interrupted
+	 */
+	public List<Result> recognize(Collection<File> files) throws InterruptedException {
+		final List<Result> results = new ArrayList<Result>(files.size());
+		recognize(files, new Listener() {
+			public void onResult(Result result) {
+				results.add(result);
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Encodes and uploads one file. Never throws, errors are returned in the result.
+	 */
+	private Result process(int index, File file, RateLimiter limiter) {
+		long start = System.nanoTime();
+		long waited = 0;
+		try {
+			GoogleResponse response;
+			if(file.getName().toLowerCase(Locale.ROOT).endsWith(".flac")){
+				//Streamed from the file, and looked up in the cache by the file
+				int sampleRate = readFlacSampleRate(file);
+				if(limiter != null){
+					waited = limiter.acquire();
+				}
+				response = recognizer.getRecognizedDataForFlac(file, maxResults, sampleRate);
+			}
+			else{
+				ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.min(file.length(), Integer.MAX_VALUE));
+				StreamConfiguration streamConfiguration = recognizer.getFlacEncoder().convertWaveToFlac(file, out);
+				if(limiter != null){
+					waited = limiter.acquire();
+				}
+				response = recognizer.getRecognizedDataForFlac(out.toByteArray(), maxResults, streamConfiguration.getSampleRate());
+			}
+			return new Result(index, file, response, null, System.nanoTime() - start - waited);
+		} catch (Exception e) {
+			return new Result(index, file, null, e, System.nanoTime() - start - waited);
+		}
+	}
+
+	/**
+	 * Reads the sample rate from the STREAMINFO block, which always directly follows the "fLaC" marker.
+	 * Only the header is read.
+	 * @param file The FLAC file
+	 * @return The sample rate
+	 * @throws IOException If the file cannot be read or is not a FLAC stream
+	 */
+	private static int readFlacSampleRate(File file) throws IOException {
+		byte[] flacData = new byte[22];
+		InputStream in = new FileInputStream(file);
+		try {
+			int length = 0;
+			int read;
+			while(length < flacData.length && (read = in.read(flacData, length, flacData.length - length)) != -1){
+				length += read;
+			}
+			if(length < flacData.length){
+				throw new IOException("Not a FLAC stream");
+			}
+		} finally {
+			in.close();
+		}
+		if(flacData[0] != 'f' || flacData[1] != 'L' || flacData[2] != 'a' || flacData[3] != 'C'){
+			throw new IOException("Not a FLAC stream");
+		}
+		//20 bit sample rate after the 4 byte block header and 10 bytes of block and frame sizes
+		return ((flacData[18] & 0xFF) << 12) | ((flacData[19] & 0xFF) << 4) | ((flacData[20] & 0xF0) >> 4);
+	}
+
+}
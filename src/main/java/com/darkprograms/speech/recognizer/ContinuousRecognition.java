@@ -0,0 +1,390 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+import net.sourceforge.javaflacencoder.StreamConfiguration;
+
+import com.darkprograms.speech.util.PcmDecoder;
+import com.darkprograms.speech.util.RetryPolicy;
+
+/**
+ * Recognizes audio from a line for as long as it runs, reconnecting on its own.
+ * <p>Google ends duplex sessions after a while and streams fail now and then. Whenever the current session
+ * ends, a new one with a new pair id is opened. The audio sent in the last moments before the break is sent
+ * again first, so words that were cut off are recognized in the new session, and audio recorded while
+ * reconnecting is held back and sent once the new session is up. Responses keep arriving at the listeners
+ * of the GSpeechDuplex and of this recognition throughout.</p>
+ * <p>Recording runs separately from the upload, so a slow or broken connection never stalls the line.
+ * If the connection stays down for longer than the buffer holds, the oldest audio is dropped.</p>
+ * <p>Sessions that end quickly in a row are retried with the backoff of the GSpeechDuplex's
+ * {@link RetryPolicy}, or a default one. If the line is closed or the GSpeechDuplex is shut down, the
+ * recognition stops on its own and {@link #getFailure()} tells why.</p>
+ */
+public class ContinuousRecognition {
+
+	/**
+	 * Length of audio read from the line at once
+	 */
+	private static final int BLOCK_MILLIS = 100;
+
+	/**
+	 * Sessions shorter than this count as failed connection attempts for the backoff
+	 */
+	private static final long MIN_HEALTHY_SESSION_MILLIS = 5000;
+
+	private final GSpeechDuplex duplex;
+	private final TargetDataLine line;
+	private final AudioFormat format;
+	private final StreamConfiguration streamConfiguration;
+
+	private int replayTailMillis = 1500;
+	private int maxBufferedMillis = 30000;
+
+	/**
+	 * Audio recorded and not yet sent
+	 */
+	private LinkedBlockingDeque<byte[]> pending;
+
+	/**
+	 * Audio sent most recently, replayed after a reconnect
+	 */
+	private final ArrayDeque<byte[]> tail = new ArrayDeque<byte[]>();
+	private int tailBlocks;
+
+	private final List<GSpeechResponseListener> responseListeners = new CopyOnWriteArrayList<GSpeechResponseListener>();
+	private final GSpeechResponseListener forwarder = new GSpeechResponseListener() {
+		public void onResponse(GoogleResponse gr) {
+			for(GSpeechResponseListener rl : responseListeners){
+				rl.onResponse(gr);
+			}
+		}
+	};
+
+	private volatile boolean running = false;
+	private volatile Throwable failure;
+	private volatile DuplexSession currentSession;
+	private Future<?> recorder;
+	private Future<?> supervisor;
+
+	/**
+	 * Statistics
+	 */
+	private final AtomicInteger sessions = new AtomicInteger();
+	private final AtomicLong droppedMillis = new AtomicLong();
+
+	/**
+	 * Constructor. Call {@link #start()} to begin.
+	 * @param duplex The GSpeechDuplex to open the sessions on. Its executor runs the recording as well.
+	 * @param line The line to record from. Opened and started if it is not open yet.
+	 * @param format The format of the line, integer PCM
+	 * @throws IOException If the format cannot be encoded to FLAC
+	 */
+	public ContinuousRecognition(GSpeechDuplex duplex, TargetDataLine line, AudioFormat format) throws IOException {
+		this.duplex = duplex;
+		this.line = line;
+		this.format = format;
+		this.streamConfiguration = new StreamConfiguration();
+		if(!streamConfiguration.setSampleRate(Math.round(format.getSampleRate()))
+				|| !streamConfiguration.setBitsPerSample(format.getSampleSizeInBits())
+				|| !streamConfiguration.setChannelCount(format.getChannels())){
+			throw new IOException("Audio format cannot be encoded to FLAC: " + format);
+		}
+	}
+
+	public int getReplayTailMillis() {
+		return replayTailMillis;
+	}
+
+	/**
+	 * Sets how much of the audio sent before a session ended is sent again to the next session
+	 * @param replayTailMillis The length in milliseconds, 1500 by default, 0 to replay nothing
+	 */
+	public void setReplayTailMillis(int replayTailMillis) {
+		this.replayTailMillis = Math.max(0, replayTailMillis);
+	}
+
+	public int getMaxBufferedMillis() {
+		return maxBufferedMillis;
+	}
+
+	/**
+	 * Sets how much audio is held back while reconnecting before the oldest is dropped
+	 * @param maxBufferedMillis The length in milliseconds, 30000 by default
+	 */
+	public void setMaxBufferedMillis(int maxBufferedMillis) {
+		this.maxBufferedMillis = Math.max(BLOCK_MILLIS, maxBufferedMillis);
+	}
+
+	/**
+	 * Adds a listener for the responses of every session of this recognition
+	 * @param rl The response listener you want to add
+	 */
+	public void addResponseListener(GSpeechResponseListener rl) {
+		responseListeners.add(rl);
+	}
+
+	/**
+	 * Removes a listener of this recognition
+	 * @param rl The response listener
+	 */
+	public void removeResponseListener(GSpeechResponseListener rl) {
+		responseListeners.remove(rl);
+	}
+
+	/**
+	 * Opens the line if needed and starts recording and recognizing
+	 * @throws LineUnavailableException If the line cannot be opened
+	 */
+	public synchronized void start() throws LineUnavailableException {
+		if(running){
+			return;
+		}
+		if(!line.isOpen()){
+			line.open(format);
+		}
+		line.start();
+		pending = new LinkedBlockingDeque<byte[]>(Math.max(1, maxBufferedMillis / BLOCK_MILLIS));
+		tailBlocks = replayTailMillis / BLOCK_MILLIS;
+		failure = null;
+		running = true;
+		recorder = submit(new Runnable() {
+			public void run() {
+				record();
+			}
+		});
+		supervisor = submit(new Runnable() {
+			public void run() {
+				supervise();
+			}
+		});
+	}
+
+	/**
+	 * Stops recording and ends the current session. The line is stopped but not closed.
+	 */
+	public synchronized void stop() {
+		if(!running){
+			return;
+		}
+		running = false;
+		line.stop();
+		recorder.cancel(true);
+		supervisor.cancel(true);
+		DuplexSession session = currentSession;
+		if(session != null){
+			session.cancel();
+		}
+	}
+
+	/**
+	 * Returns true between {@link #start()} and {@link #stop()}
+	 * @return True if recording
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Gets the reason the recognition stopped on its own, e.g. because the line was closed or the
+	 * GSpeechDuplex was shut down
+	 * @return The failure, or null if the recognition is running or was stopped by {@link #stop()}
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Gets the session currently streaming
+	 * @return The session, or null while reconnecting
+	 */
+	public DuplexSession getCurrentSession() {
+		return currentSession;
+	}
+
+	/**
+	 * Gets the number of sessions opened so far
+	 * @return The session count, 1 plus the number of reconnects
+	 */
+	public int getSessionCount() {
+		return sessions.get();
+	}
+
+	/**
+	 * Gets the length of audio dropped because a reconnect took longer than the buffer holds
+	 * @return The dropped audio in milliseconds
+	 */
+	public long getDroppedMillis() {
+		return droppedMillis.get();
+	}
+
+	private Future<?> submit(Runnable task) {
+		FutureTask<Void> future = new FutureTask<Void>(task, null);
+		duplex.getExecutor().execute(future);
+		return future;
+	}
+
+	/**
+	 * Stops the recognition because it cannot go on
+	 * @param cause The reason, see {@link #getFailure()}
+	 */
+	private synchronized void fail(Throwable cause) {
+		if(running){
+			failure = cause;
+			stop();
+		}
+	}
+
+	/**
+	 * Reads the line into the pending queue until stopped
+	 */
+	private void record() {
+		int blockSize = format.getFrameSize() * Math.max(1, Math.round(format.getSampleRate() * BLOCK_MILLIS / 1000));
+		while(running){
+			byte[] block = new byte[blockSize];
+			int read = line.read(block, 0, block.length);
+			if(read <= 0){
+				if(!running){
+					return;
+				}
+				if(!line.isOpen()){
+					fail(new LineUnavailableException("Line was closed"));
+					return;
+				}
+				//Stopped by someone else; waits for it to be started again
+				try {
+					Thread.sleep(BLOCK_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			if(read < block.length){
+				byte[] partial = new byte[read - read % format.getFrameSize()];
+				System.arraycopy(block, 0, partial, 0, partial.length);
+				block = partial;
+			}
+			while(!pending.offerLast(block)){
+				//Drops the oldest audio rather than stalling the line
+				if(pending.pollFirst() != null){
+					droppedMillis.addAndGet(BLOCK_MILLIS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens sessions one after the other until stopped
+	 */
+	private void supervise() {
+		RetryPolicy policy = duplex.getRetryPolicy() != null ? duplex.getRetryPolicy() : new RetryPolicy();
+		int failures = 0;
+		try {
+			while(running){
+				long start = System.nanoTime();
+				DuplexSession session;
+				try {
+					session = duplex.openSession(new GSpeechDuplex.AudioWriter() {
+						public void write(OutputStream out, DuplexSession session) throws IOException {
+							upload(out, session);
+						}
+					}, Math.round(format.getSampleRate()), "&continuous=true&interim=true");
+				} catch (RuntimeException e) {
+					if(duplex.isShutdown()){
+						fail(e);
+						return;
+					}
+					//E.g. the executor is saturated; tried again after the backoff
+					failures++;
+					Thread.sleep(policy.getBackoffMillis(failures));
+					continue;
+				}
+				sessions.incrementAndGet();
+				session.addResponseListener(forwarder);
+				currentSession = session;
+				session.await();
+				//Google has closed the session; the upload notices and ends as well
+				session.awaitUpload();
+				currentSession = null;
+				if(!running){
+					return;
+				}
+				if(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < MIN_HEALTHY_SESSION_MILLIS){
+					failures++;
+					Thread.sleep(policy.getBackoffMillis(failures));
+				}
+				else{
+					failures = 0;
+				}
+			}
+		} catch (InterruptedException e) {
+			//Stopped
+		}
+	}
+
+	/**
+	 * Streams the tail of the previous session and then the recording into a session, until the
+	 * session ends or the recognition is stopped
+	 */
+	private void upload(OutputStream out, DuplexSession session) throws IOException {
+		PcmDecoder decoder = new PcmDecoder(format);
+		int frameSize = format.getFrameSize();
+		int[] samples = new int[0];
+		FlacStreamEncoder encoder = new FlacStreamEncoder(streamConfiguration, out);
+		List<byte[]> replay;
+		synchronized(tail){
+			replay = new ArrayList<byte[]>(tail);
+		}
+		try {
+			for(byte[] block : replay){
+				samples = encode(encoder, decoder, block, frameSize, samples);
+			}
+			out.flush();
+			while(running && !session.isDone()){
+				byte[] block = pending.pollFirst(BLOCK_MILLIS, TimeUnit.MILLISECONDS);
+				if(block == null){
+					continue;
+				}
+				samples = encode(encoder, decoder, block, frameSize, samples);
+				out.flush();
+				synchronized(tail){
+					tail.addLast(block);
+					while(tail.size() > tailBlocks){
+						tail.removeFirst();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Upload stopped");
+		}
+		encoder.finish();
+	}
+
+	private static int[] encode(FlacStreamEncoder encoder, PcmDecoder decoder, byte[] block, int frameSize,
+			int[] samples) throws IOException {
+		int sampleCount = block.length / decoder.getBytesPerSample();
+		if(samples.length < sampleCount){
+			samples = new int[sampleCount];
+		}
+		decoder.decode(block, 0, block.length, samples);
+		encoder.addSamples(samples, block.length / frameSize);
+		return samples;
+	}
+
+}
@@ -0,0 +1,264 @@
+package com.darkprograms.speech.recognizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle to one recognition of {@link GSpeechDuplex}: an up stream carrying the audio and a down stream
+ * carrying Google's responses, tied together by a pair id.
+ * <p>Responses of the session are delivered to the listeners of the GSpeechDuplex it was opened on and
+ * then to the listeners added to the session itself, so each caller only hears about its own audio.
+ * The session is complete once Google has closed the down stream and its listeners have received every
+ * response.</p>
+ */
+public class DuplexSession {
+
+	private final long pairId;
+
+	/**
+	 * Recognition slot of the session, null if the number of sessions is not limited
+	 */
+	private final Semaphore permits;
+	private final AtomicBoolean released = new AtomicBoolean(false);
+	private final AtomicInteger openChannels = new AtomicInteger(2);
+
+	/**
+	 * Counted down once the listeners have received every response of the down stream
+	 */
+	private final CountDownLatch delivered = new CountDownLatch(1);
+
+	private final List<GSpeechResponseListener> responseListeners = new CopyOnWriteArrayList<GSpeechResponseListener>();
+
+	/**
+	 * Hands the responses of the session to its listeners, the target of the session's responses
+	 * in the {@link ResponseDispatcher}
+	 */
+	final GSpeechResponseListener listeners = new GSpeechResponseListener() {
+		public void onResponse(GoogleResponse gr) {
+			for(GSpeechResponseListener rl : responseListeners){
+				rl.onResponse(gr);
+			}
+		}
+	};
+
+	/**
+	 * Final responses in the order they were received
+	 */
+	private final List<GoogleResponse> finalResponses = new ArrayList<GoogleResponse>();
+
+	private volatile Future<?> downChannel;
+	private volatile Future<?> upChannel;
+
+	/**
+	 * Constructor
+	 * @param pairId The id that pairs the up and down stream
+	 * @param permits The semaphore the session holds a permit of, or null
+	 */
+	DuplexSession(long pairId, Semaphore permits) {
+		this.pairId = pairId;
+		this.permits = permits;
+	}
+
+	/**
+	 * Gets the id that pairs the up and down stream of this session
+	 * @return The pair id
+	 */
+	public long getPairId() {
+		return pairId;
+	}
+
+	/**
+	 * Adds a listener for the responses of this session only
+	 * @param rl The response listener you want to add
+	 */
+	public void addResponseListener(GSpeechResponseListener rl) {
+		responseListeners.add(rl);
+	}
+
+	/**
+	 * Removes a listener of this session
+	 * @param rl The response listener
+	 */
+	public void removeResponseListener(GSpeechResponseListener rl) {
+		responseListeners.remove(rl);
+	}
+
+	/**
+	 * Returns true once Google has sent all responses, or the session has been cancelled or has failed
+	 * @return True if the session is complete
+	 */
+	public boolean isDone() {
+		Future<?> down = downChannel;
+		return down != null && down.isDone() && (down.isCancelled() || delivered.getCount() == 0);
+	}
+
+	/**
+	 * Stops the session, closing both streams
+	 */
+	public void cancel() {
+		Future<?> up = upChannel;
+		Future<?> down = downChannel;
+		if(up != null){
+			up.cancel(true);
+		}
+		if(down != null){
+			down.cancel(true);
+		}
+	}
+
+	/**
+	 * Stops sending audio. Google still answers the audio it has received.
+	 */
+	public void stopUpload() {
+		Future<?> up = upChannel;
+		if(up != null){
+			up.cancel(true);
+		}
+	}
+
+	/**
+	 * Waits for the session to complete
+	 * @throws InterruptedException If interrupted while waiting. The session keeps running.
+	 */
+	public void await() throws InterruptedException {
+		try {
+			downChannel.get();
+		} catch (ExecutionException e) {
+			//The streams report their own errors
+		} catch (CancellationException e) {
+			//Responses that were still queued are not waited for
+			return;
+		}
+		delivered.await();
+	}
+
+	/**
+	 * Waits for the session to complete
+	 * @param timeout The longest time to wait
+	 * @param unit The unit of the timeout
+	 * @return True if the session is complete, false if the timeout elapsed first
+	 * @throws InterruptedException If interrupted while waiting. The session keeps running.
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			downChannel.get(timeout, unit);
+		} catch (ExecutionException e) {
+			//The streams report their own errors
+		} catch (CancellationException e) {
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		}
+		return delivered.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Waits for the up stream to end
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	void awaitUpload() throws InterruptedException {
+		try {
+			upChannel.get();
+		} catch (ExecutionException | CancellationException e) {
+			//The streams report their own errors
+		}
+	}
+
+	/**
+	 * Gets the final responses received so far
+	 * @return A copy of the final responses, in the order they were received
+	 */
+	public List<GoogleResponse> getFinalResponses() {
+		synchronized(finalResponses){
+			return new ArrayList<GoogleResponse>(finalResponses);
+		}
+	}
+
+	/**
+	 * Merges the final responses received so far, e.g. after {@link #await()}
+	 * @return A response with the transcripts of all utterances joined with spaces and their mean confidence
+	 */
+	public GoogleResponse getMergedResponse() {
+		GoogleResponse merged = new GoogleResponse();
+		StringBuilder transcript = new StringBuilder();
+		double confidenceSum = 0;
+		int confidenceCount = 0;
+		for(GoogleResponse gr : getFinalResponses()){
+			String text = gr.getResponse().trim();
+			if(text.isEmpty()){
+				continue;
+			}
+			if(transcript.length() > 0){
+				transcript.append(' ');
+			}
+			transcript.append(text);
+			if(!Double.isNaN(gr.getConfidenceValue())){
+				confidenceSum += gr.getConfidenceValue();
+				confidenceCount++;
+			}
+		}
+		if(transcript.length() > 0){
+			merged.setResponse(transcript.toString());
+		}
+		merged.setConfidence(confidenceCount > 0 ? confidenceSum / confidenceCount : Double.NaN);
+		merged.setFinalResponse(true);
+		return merged;
+	}
+
+	/**
+	 * Sets the streams once they have been started
+	 */
+	void setChannels(Future<?> downChannel, Future<?> upChannel) {
+		this.downChannel = downChannel;
+		this.upChannel = upChannel;
+	}
+
+	/**
+	 * Records a response of the down stream as it is read, so it is part of the merged response as soon
+	 * as the session is complete
+	 */
+	void record(GoogleResponse gr) {
+		if(gr.isFinalResponse() && gr.getResponse() != null){
+			synchronized(finalResponses){
+				finalResponses.add(gr);
+			}
+		}
+	}
+
+	/**
+	 * Called once the listeners have received every response of the down stream
+	 */
+	void delivered() {
+		delivered.countDown();
+	}
+
+	/**
+	 * Called as each stream ends. Frees the recognition slot once both have.
+	 */
+	void channelDone() {
+		if(openChannels.decrementAndGet() == 0){
+			release();
+		}
+	}
+
+	/**
+	 * Frees the recognition slot right away, for a session whose streams could not both be started
+	 */
+	void release() {
+		if(permits != null && released.compareAndSet(false, true)){
+			permits.release();
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Runs many duplex recognitions at once, e.g. one per phone line, and keeps track of them.
+ * <p>All sessions share one {@link GSpeechDuplex} and so its API key, language, retry policy and rate
+ * limiter. Their streams run on virtual threads where the runtime has them, so a stream waiting on the
+ * network does not hold a platform thread, and the number of sessions is limited by bandwidth rather than
+ * by threads. Each session gets its own pair id and listeners; responses are routed by the down stream
+ * they arrive on, so a listener of a session only hears that session.</p>
+ * <p>Sessions that have completed are forgotten. Close the manager to cancel the sessions still running.</p>
+ */
+public class DuplexSessionManager implements Closeable {
+
+	private final GSpeechDuplex duplex;
+
+	/**
+	 * The executor created by this manager, null if the duplex was given with its own
+	 */
+	private final ExecutorService ownExecutor;
+
+	/**
+	 * Sessions that may still be running, by pair id
+	 */
+	private final ConcurrentHashMap<Long, DuplexSession> sessions = new ConcurrentHashMap<Long, DuplexSession>();
+
+	/**
+	 * Constructor
+	 * @param API_KEY The API-Key for Google's Speech API
+	 */
+	public DuplexSessionManager(String API_KEY) {
+		this.duplex = new GSpeechDuplex(API_KEY);
+		this.ownExecutor = GSpeechDuplex.newVirtualThreadExecutor();
+		this.duplex.setExecutor(ownExecutor);
+	}
+
+	/**
+	 * Constructor for a manager of sessions on a configured GSpeechDuplex. Its executor is used as it is.
+	 * @param duplex The GSpeechDuplex to open the sessions on
+	 */
+	public DuplexSessionManager(GSpeechDuplex duplex) {
+		this.duplex = duplex;
+		this.ownExecutor = null;
+	}
+
+	/**
+	 * Gets the GSpeechDuplex the sessions are opened on, e.g. to set the language or a rate limiter.
+	 * Its listeners receive the responses of all sessions.
+	 * @return The GSpeechDuplex
+	 */
+	public GSpeechDuplex getDuplex() {
+		return duplex;
+	}
+
+	/**
+	 * Sets the maximum number of sessions streaming at once. Once the limit is reached, opening a session
+	 * blocks until an earlier one has completed.
+	 * @param maxSessions The limit, 0 for no limit (default)
+	 */
+	public void setMaxConcurrentSessions(int maxSessions) {
+		duplex.setMaxConcurrentSessions(maxSessions);
+	}
+
+	public int getMaxConcurrentSessions() {
+		return duplex.getMaxConcurrentSessions();
+	}
+
+	/**
+	 * Opens a session that recognizes FLAC data
+	 * @param data The FLAC stream
+	 * @param sampleRate The sample rate of the stream
+	 * @return The session
+	 * @throws InterruptedException If interrupted while waiting for a free session
+	 */
+	public DuplexSession open(byte[] data, int sampleRate) throws InterruptedException {
+		return register(duplex.openSession(data, sampleRate, true));
+	}
+
+	/**
+	 * Opens a session that recognizes a FLAC file
+	 * @param flacFile The FLAC file
+	 * @param sampleRate The sample rate of the file
+	 * @return The session
+	 * @throws IOException If the file cannot be read
+	 * @throws InterruptedException If interrupted while waiting for a free session
+	 */
+	public DuplexSession open(File flacFile, int sampleRate) throws IOException, InterruptedException {
+		return open(Files.readAllBytes(flacFile.toPath()), sampleRate);
+	}
+
+	/**
+	 * Opens a session that streams from a line until the session is cancelled or Google ends it
+	 * @param tl The line to stream from. Opened and started if it is not open yet.
+	 * @param af The format of the line
+	 * @return The session
+	 * @throws IOException If the stream cannot be started
+	 * @throws LineUnavailableException If the line cannot be opened
+	 * @throws InterruptedException If interrupted while waiting for a free session
+	 */
+	public DuplexSession open(TargetDataLine tl, AudioFormat af) throws IOException, LineUnavailableException, InterruptedException {
+		return register(duplex.openSession(tl, af));
+	}
+
+	/**
+	 * Looks up a running session
+	 * @param pairId The pair id of the session
+	 * @return The session, or null if it has completed or is unknown
+	 */
+	public DuplexSession getSession(long pairId) {
+		DuplexSession session = sessions.get(pairId);
+		if(session != null && session.isDone()){
+			sessions.remove(pairId, session);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Gets the sessions that are still running
+	 * @return A snapshot of the running sessions
+	 */
+	public List<DuplexSession> getActiveSessions() {
+		purge();
+		return new ArrayList<DuplexSession>(sessions.values());
+	}
+
+	/**
+	 * Gets the number of sessions that are still running
+	 * @return The session count
+	 */
+	public int getActiveSessionCount() {
+		purge();
+		return sessions.size();
+	}
+
+	/**
+	 * Cancels every running session. New sessions may still be opened.
+	 */
+	public void cancelAll() {
+		for(DuplexSession session : sessions.values()){
+			session.cancel();
+		}
+		sessions.clear();
+	}
+
+	/**
+	 * Waits for every running session to complete
+	 * @param timeout The longest time to wait
+	 * @param unit The unit of the timeout
+	 * @return True if every session has completed, false if the timeout elapsed first
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean awaitAll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for(DuplexSession session : getActiveSessions()){
+			if(!session.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels every running session and stops the threads of this manager. The GSpeechDuplex no longer
+	 * accepts sessions afterwards.
+	 */
+	@Override
+	public void close() {
+		cancelAll();
+		duplex.shutdownNow();
+		if(ownExecutor != null){
+			ownExecutor.shutdownNow();
+		}
+	}
+
+	private DuplexSession register(DuplexSession session) {
+		purge();
+		sessions.put(session.getPairId(), session);
+		return session;
+	}
+
+	/**
+	 * Forgets the sessions that have completed
+	 */
+	private void purge() {
+		for(DuplexSession session : sessions.values()){
+			if(session.isDone()){
+				sessions.remove(session.getPairId(), session);
+			}
+		}
+	}
+
+}
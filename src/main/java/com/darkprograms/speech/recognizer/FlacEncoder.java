@@ -1,15 +1,20 @@
 package com.darkprograms.speech.recognizer;
 
-import net.sourceforge.javaflacencoder.FLACEncoder;
 import net.sourceforge.javaflacencoder.FLACFileOutputStream;
+import net.sourceforge.javaflacencoder.FLACOutputStream;
+import net.sourceforge.javaflacencoder.FLACStreamOutputStream;
 import net.sourceforge.javaflacencoder.StreamConfiguration;
 
+import com.darkprograms.speech.util.PcmDecoder;
+import com.darkprograms.speech.util.Resampler;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.File;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.IOException;
+import java.io.OutputStream;
 
 /*************************************************************************************************************
  * Class that contains methods to encode Wave files to FLAC files
@@ -17,6 +22,31 @@ import java.nio.ByteOrder;
  ************************************************************************************************************/
 public class FlacEncoder {
 
+    /**
+     * Number of frames read from the wave file, converted and handed to the encoder at a time
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Sample rate the audio is converted to before encoding, 0 to keep the input rate
+     */
+    private int targetSampleRate = 0;
+
+    /**
+     * Whether multi-channel audio is mixed down to mono before encoding
+     */
+    private boolean downmix = false;
+
+    /**
+     * Number of threads FLAC blocks are encoded on, 0 to encode on the calling thread
+     */
+    private int threadCount = 0;
+
+    /**
+     * Pool javaFlacEncoder instances are borrowed from, null to create a new one per conversion
+     */
+    private FlacEncoderPool encoderPool = null;
+
     /**
      * Constructor
      */
@@ -24,97 +54,261 @@ public class FlacEncoder {
 
     }
 
+    /**
+     * Gets the sample rate audio is converted to before encoding
+     *
+     * @return The target sample rate, 0 if the input rate is kept
+     */
+    public int getTargetSampleRate() {
+        return targetSampleRate;
+    }
+
+    /**
+     * Sets the sample rate audio is converted to before encoding. Google's recognizer works best with
+     * 16000 Hz; resampling higher rates down to it shrinks both the upload and the encoding work.
+     *
+     * @param targetSampleRate The sample rate to encode at, or 0 to keep the input rate
+     */
+    public void setTargetSampleRate(int targetSampleRate) {
+        this.targetSampleRate = targetSampleRate;
+    }
+
+    /**
+     * Returns whether multi-channel audio is mixed down to mono before encoding
+     *
+     * @return true if audio is down-mixed
+     */
+    public boolean isDownmix() {
+        return downmix;
+    }
+
+    /**
+     * Sets whether multi-channel audio is mixed down to mono before encoding. Off by default.
+     *
+     * @param downmix true to average all channels into one
+     */
+    public void setDownmix(boolean downmix) {
+        this.downmix = downmix;
+    }
+
+    /**
+     * Gets the pool encoder instances are borrowed from
+     *
+     * @return The pool, or null if every conversion creates its own encoder
+     */
+    public FlacEncoderPool getEncoderPool() {
+        return encoderPool;
+    }
+
+    /**
+     * Sets a pool to borrow encoder instances from, so repeated conversions reuse the encoder's internal
+     * buffers instead of allocating new ones. This FlacEncoder may then be shared between threads, as long
+     * as its settings are not changed while conversions are running.
+     *
+     * @param encoderPool The pool, e.g. FlacEncoderPool.getDefault(), or null to create an encoder per conversion
+     */
+    public void setEncoderPool(FlacEncoderPool encoderPool) {
+        this.encoderPool = encoderPool;
+    }
+
+    /**
+     * Gets the number of threads FLAC blocks are encoded on
+     *
+     * @return The thread count, 0 if encoding happens on the calling thread
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the number of threads FLAC blocks are encoded on. Blocks are independent, so long files encode
+     * close to threadCount times faster; the output is identical. 0, the default, encodes on the calling
+     * thread, which is best for short clips.
+     *
+     * @param threadCount The number of threads, e.g. Runtime.getRuntime().availableProcessors()
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
     /**
      * Converts a wave file to a FLAC file(in order to POST the data to Google and retrieve a response) <br>
-     * Sample Rate is 8000 by default
+     * Sample rate, bit depth and channel count are taken from the wave file, unless a target sample rate
+     * or down-mixing is set
      *
      * @param inputFile  Input wave file
      * @param outputFile Output FLAC file
+     * @return The configuration of the written FLAC stream, or null if the conversion failed
      */
-    public void convertWaveToFlac(File inputFile, File outputFile) {
+    public StreamConfiguration convertWaveToFlac(File inputFile, File outputFile) {
+        try {
+            FLACFileOutputStream flacOutputStream = new FLACFileOutputStream(outputFile);
+            try {
+                AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(inputFile);
+                try {
+                    return encode(audioInputStream, flacOutputStream);
+                } finally {
+                    audioInputStream.close();
+                }
+            } finally {
+                flacOutputStream.close();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
 
+    /**
+     * Converts a wave file to FLAC and writes the encoded data straight to the given stream,
+     * without touching the file system. The stream is flushed but not closed. <br>
+     * Sample rate, bit depth and channel count are taken from the wave file, unless a target sample rate
+     * or down-mixing is set
+     *
+     * @param inputFile    Input wave file
+     * @param outputStream Stream that receives the FLAC data, e.g. a request body or a ByteArrayOutputStream
+     * @return The configuration of the written FLAC stream, use its sample rate when sending the data to Google
+     * @throws IOException if the wave file cannot be read or the stream cannot be written
+     */
+    public StreamConfiguration convertWaveToFlac(File inputFile, OutputStream outputStream) throws IOException {
+        AudioInputStream audioInputStream;
+        try {
+            audioInputStream = AudioSystem.getAudioInputStream(inputFile);
+        } catch (UnsupportedAudioFileException ex) {
+            throw new IOException("Unsupported audio file: " + inputFile, ex);
+        }
+        try {
+            return convertToFlac(audioInputStream, outputStream);
+        } finally {
+            audioInputStream.close();
+        }
+    }
 
-        StreamConfiguration streamConfiguration = new StreamConfiguration();
-        streamConfiguration.setSampleRate(8000);
-        streamConfiguration.setBitsPerSample(16);
-        streamConfiguration.setChannelCount(1);
+    /**
+     * Encodes an audio stream to FLAC and writes it to the given stream. Neither stream is closed.
+     * Formats FLAC cannot hold directly (floating point, A-law, &mu;-law, 32 bit) are converted to 16 bit PCM first.
+     *
+     * @param audioInputStream The audio to encode
+     * @param outputStream     Stream that receives the FLAC data
+     * @return The configuration of the written FLAC stream
+     * @throws IOException if the audio cannot be read or the stream cannot be written
+     */
+    public StreamConfiguration convertToFlac(AudioInputStream audioInputStream, OutputStream outputStream) throws IOException {
+        StreamConfiguration streamConfiguration = encode(audioInputStream, new FLACStreamOutputStream(outputStream));
+        outputStream.flush();
+        return streamConfiguration;
+    }
 
+    /**
+     * Derives the FLAC stream configuration matching an audio format.
+     *
+     * @param format The format of the PCM data that will be encoded
+     * @return The stream configuration with the format's sample rate, bit depth and channel count
+     * @throws IOException if FLAC cannot represent the format
+     */
+    public static StreamConfiguration getStreamConfiguration(AudioFormat format) throws IOException {
+        StreamConfiguration streamConfiguration = new StreamConfiguration();
+        if (!streamConfiguration.setSampleRate(Math.round(format.getSampleRate()))
+                || !streamConfiguration.setBitsPerSample(format.getSampleSizeInBits())
+                || !streamConfiguration.setChannelCount(format.getChannels())) {
+            throw new IOException("Audio format cannot be encoded to FLAC: " + format);
+        }
+        return streamConfiguration;
+    }
 
-        try {
-            AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(inputFile);
-            AudioFormat format = audioInputStream.getFormat();
+    /**
+     * Encodes the audio stream into the given FLAC output.
+     *
+     * @param audioInputStream The audio to encode
+     * @param flacOutputStream Destination of the encoded FLAC stream
+     * @return The configuration of the written FLAC stream
+     * @throws IOException if reading or writing fails
+     */
+    private StreamConfiguration encode(AudioInputStream audioInputStream, FLACOutputStream flacOutputStream)
+            throws IOException {
+        audioInputStream = toIntegerPcm(audioInputStream);
+        AudioFormat format = audioInputStream.getFormat();
 
-            int frameSize = format.getFrameSize();
+        int frameSize = format.getFrameSize();
+        int channels = format.getChannels();
+        int sampleRate = Math.round(format.getSampleRate());
 
-            FLACEncoder flacEncoder = new FLACEncoder();
-            FLACFileOutputStream flacOutputStream = new FLACFileOutputStream(outputFile);
+        //Optional conversion stage between the decoded PCM and the encoder
+        Resampler resampler = null;
+        if ((targetSampleRate > 0 && targetSampleRate != sampleRate) || (downmix && channels > 1)) {
+            resampler = new Resampler(sampleRate, targetSampleRate > 0 ? targetSampleRate : sampleRate,
+                    channels, downmix, format.getSampleSizeInBits());
+        }
 
-            flacEncoder.setStreamConfiguration(streamConfiguration);
-            flacEncoder.setOutputStream(flacOutputStream);
+        StreamConfiguration streamConfiguration = getStreamConfiguration(format);
+        if (resampler != null) {
+            streamConfiguration.setSampleRate(resampler.getOutputRate());
+            streamConfiguration.setChannelCount(resampler.getOutputChannels());
+        }
 
-            flacEncoder.openFLACStream();
+        FlacStreamEncoder flacEncoder = new FlacStreamEncoder(streamConfiguration, flacOutputStream, encoderPool);
+        flacEncoder.setThreadCount(threadCount);
 
-            int frameLength = (int) audioInputStream.getFrameLength();
-            if(frameLength <= AudioSystem.NOT_SPECIFIED){
-            	frameLength = 16384;//Arbitrary file size
-            }
-            int[] sampleData = new int[frameLength];
-            byte[] samplesIn = new byte[frameSize];
-
-            int i = 0;
-
-            while (audioInputStream.read(samplesIn, 0, frameSize) != -1) {
-                if (frameSize != 1) {
-                    ByteBuffer bb = ByteBuffer.wrap(samplesIn);
-                    bb.order(ByteOrder.LITTLE_ENDIAN);
-                    short shortVal = bb.getShort();
-                    sampleData[i] = shortVal;
-                } else {
-                    sampleData[i] = samplesIn[0];
-                }
+        //PCM is read and converted a block at a time into reused buffers, so memory use does not grow with the input
+        PcmDecoder pcmDecoder = new PcmDecoder(format);
+        byte[] samplesIn = new byte[BLOCK_SIZE * frameSize];
+        int[] sampleData = new int[BLOCK_SIZE * channels];
+        int[] resampled = resampler == null ? null
+                : new int[resampler.getMaxOutputFrames(BLOCK_SIZE) * resampler.getOutputChannels()];
 
-                i++;
+        int bytesRead;
+        while ((bytesRead = audioInputStream.read(samplesIn, 0, samplesIn.length)) != -1) {
+            int frames = bytesRead / frameSize;
+            //Samples stay interleaved, the encoder splits the channels itself
+            pcmDecoder.decode(samplesIn, 0, frames * frameSize, sampleData);
+            if (resampler == null) {
+                flacEncoder.addSamples(sampleData, frames);
+            } else {
+                flacEncoder.addSamples(resampled, resampler.process(sampleData, frames, resampled));
             }
+        }
+        if (resampler != null) {
+            flacEncoder.addSamples(resampled, resampler.flush(resampled));
+        }
 
-            sampleData = truncateNullData(sampleData, i);
-            
-            flacEncoder.addSamples(sampleData, i);
-            flacEncoder.encodeSamples(i, false);
-            flacEncoder.encodeSamples(flacEncoder.samplesAvailableToEncode(), true);
-
-            audioInputStream.close();
-            flacOutputStream.close();
+        flacEncoder.finish();
+        return streamConfiguration;
+    }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    /**
+     * Converts the stream to signed 16 bit PCM if FLAC cannot hold its samples as they are.
+     *
+     * @param audioInputStream The stream to check
+     * @return The original stream if it already holds integer PCM of at most 24 bits, otherwise a converting stream
+     * @throws IOException if Java Sound has no converter for the format
+     */
+    private AudioInputStream toIntegerPcm(AudioInputStream audioInputStream) throws IOException {
+        AudioFormat format = audioInputStream.getFormat();
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        if ((AudioFormat.Encoding.PCM_SIGNED.equals(encoding) || AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding))
+                && (bits == 8 || bits == 16 || bits == 24)) {
+            return audioInputStream;
+        }
+        AudioFormat pcmFormat = new AudioFormat(format.getSampleRate(), 16, format.getChannels(), true, false);
+        try {
+            return AudioSystem.getAudioInputStream(pcmFormat, audioInputStream);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unsupported audio format: " + format, ex);
         }
     }
 
 
     /**
      * Converts a wave file to a FLAC file(in order to POST the data to Google and retrieve a response) <br>
-     * Sample Rate is 8000 by default
+     * Sample rate, bit depth and channel count are taken from the wave file
      *
      * @param inputFile  Input wave file
      * @param outputFile Output FLAC file
+     * @return The configuration of the written FLAC stream, or null if the conversion failed
      */
-    public void convertWaveToFlac(String inputFile, String outputFile) {
-        convertWaveToFlac(new File(inputFile), new File(outputFile));
-    }
-
-    /**
-     * Used for when the frame length is unknown to shorten the array to prevent huge blank end space 
-     * @param sampleData The int[] array you want to shorten
-     * @param index The index you want to shorten it to
-     * @return The shortened array
-     */
-    private int[] truncateNullData(int[] sampleData, int index){
-    	if(index == sampleData.length) return sampleData;
-    	int[] out = new int[index];
-    	for(int i = 0; i<index; i++){
-    		out[i] = sampleData[i];
-    	}
-    	return out;
+    public StreamConfiguration convertWaveToFlac(String inputFile, String outputFile) {
+        return convertWaveToFlac(new File(inputFile), new File(outputFile));
     }
 
 }
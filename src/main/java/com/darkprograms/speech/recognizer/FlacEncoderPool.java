@@ -0,0 +1,174 @@
+package com.darkprograms.speech.recognizer;
+
+import net.sourceforge.javaflacencoder.FLACEncoder;
+import net.sourceforge.javaflacencoder.FLACOutputStream;
+import net.sourceforge.javaflacencoder.StreamConfiguration;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of javaFlacEncoder instances. Creating a FLACEncoder allocates its frame and block
+ * buffers; when thousands of short clips are encoded that churn adds up, so finished encoders are
+ * kept here and handed out again. An encoder that is handed out with the same configuration it was
+ * last used with is not reconfigured at all.
+ * <p>Pass a pool to {@link FlacEncoder#setEncoderPool(FlacEncoderPool)} or to {@link FlacStreamEncoder}
+ * to use it. Encoders only come back to the pool once their stream has finished cleanly.</p>
+ */
+public class FlacEncoderPool {
+
+	/**
+	 * Default maximum number of idle encoders kept
+	 */
+	private static final int DEFAULT_MAX_IDLE = 16;
+
+	/**
+	 * Pool shared by all classes that do not specify their own
+	 */
+	private static final FlacEncoderPool DEFAULT_POOL = new FlacEncoderPool(DEFAULT_MAX_IDLE);
+
+	/**
+	 * Output given to idle encoders so they do not keep the last caller's stream reachable
+	 */
+	private static final FLACOutputStream DETACHED = new FLACOutputStream() {
+		public long seek(long pos) { return 0; }
+		public int write(byte[] data, int offset, int count) { return count; }
+		public long size() { return 0; }
+		public void write(byte data) { }
+		public boolean canSeek() { return false; }
+		public long getPos() { return 0; }
+	};
+
+	/**
+	 * An idle encoder together with the configuration it holds
+	 */
+	private static final class Entry {
+		private final FLACEncoder encoder;
+		private final StreamConfiguration streamConfiguration;
+
+		private Entry(FLACEncoder encoder, StreamConfiguration streamConfiguration) {
+			this.encoder = encoder;
+			this.streamConfiguration = streamConfiguration;
+		}
+	}
+
+	/**
+	 * The idle encoders
+	 */
+	private final ConcurrentLinkedQueue<Entry> idle = new ConcurrentLinkedQueue<Entry>();
+
+	/**
+	 * Size of the idle queue, tracked separately because ConcurrentLinkedQueue.size() is not constant time
+	 */
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * Maximum number of idle encoders kept
+	 */
+	private final int maxIdle;
+
+	/**
+	 * Statistics
+	 */
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param maxIdle The maximum number of idle encoders kept. Encoders released beyond that are discarded.
+	 */
+	public FlacEncoderPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Gets the pool shared by the recognizer classes
+	 * @return The default pool
+	 */
+	public static FlacEncoderPool getDefault() {
+		return DEFAULT_POOL;
+	}
+
+	/**
+	 * Takes an encoder from the pool, or creates one if none is idle, and configures it.
+	 * @param streamConfiguration The configuration the encoder must have
+	 * @return An encoder ready for setOutputStream and openFLACStream, or null if the configuration is invalid
+	 */
+	FLACEncoder acquire(StreamConfiguration streamConfiguration) {
+		Entry entry = idle.poll();
+		FLACEncoder encoder;
+		if(entry != null){
+			idleCount.decrementAndGet();
+			reused.incrementAndGet();
+			encoder = entry.encoder;
+			if(sameConfiguration(entry.streamConfiguration, streamConfiguration)){
+				return encoder;
+			}
+		}
+		else{
+			created.incrementAndGet();
+			encoder = new FLACEncoder();
+		}
+		return encoder.setStreamConfiguration(streamConfiguration) ? encoder : null;
+	}
+
+	/**
+	 * Returns an encoder whose stream has been finished. Any leftover samples are cleared and the
+	 * encoder is detached from its output.
+	 * @param encoder The encoder
+	 * @param streamConfiguration The configuration it was used with
+	 */
+	void release(FLACEncoder encoder, StreamConfiguration streamConfiguration) {
+		encoder.clear();
+		encoder.setOutputStream(DETACHED);
+		if(idleCount.incrementAndGet() <= maxIdle){
+			idle.offer(new Entry(encoder, new StreamConfiguration(streamConfiguration)));
+		}
+		else{
+			idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the number of encoders waiting to be reused
+	 * @return The idle count
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/**
+	 * Gets the number of encoders this pool has created
+	 * @return The number of encoders created
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * Gets the number of times an idle encoder was handed out again
+	 * @return The number of reuses
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * Discards all idle encoders.
+	 */
+	public void clear() {
+		while(idle.poll() != null){
+			idleCount.decrementAndGet();
+		}
+	}
+
+	private static boolean sameConfiguration(StreamConfiguration a, StreamConfiguration b) {
+		return a.getSampleRate() == b.getSampleRate()
+				&& a.getBitsPerSample() == b.getBitsPerSample()
+				&& a.getChannelCount() == b.getChannelCount()
+				&& a.getMinBlockSize() == b.getMinBlockSize()
+				&& a.getMaxBlockSize() == b.getMaxBlockSize();
+	}
+
+}
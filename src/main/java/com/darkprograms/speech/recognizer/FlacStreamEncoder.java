@@ -0,0 +1,253 @@
+package com.darkprograms.speech.recognizer;
+
+import net.sourceforge.javaflacencoder.FLACEncoder;
+import net.sourceforge.javaflacencoder.FLACOutputStream;
+import net.sourceforge.javaflacencoder.FLACStreamOutputStream;
+import net.sourceforge.javaflacencoder.StreamConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Incremental FLAC encoder. Samples are handed over in blocks of any size; every time a full FLAC
+ * block is available it is encoded and written to the output straight away, so memory use stays
+ * constant no matter how long the recording is.
+ * <p>Usage: create it, call {@link #addSamples(int[], int)} as PCM arrives and {@link #finish()} or
+ * {@link #close()} once the input is exhausted.</p>
+ * <p>FLAC blocks are independent of each other, so with {@link #setThreadCount(int)} they can be encoded
+ * on several cores at once. They are still written in order.</p>
+ */
+public class FlacStreamEncoder implements Closeable {
+
+	/**
+	 * The javaFlacEncoder instance doing the actual work
+	 */
+	private final FLACEncoder flacEncoder;
+
+	/**
+	 * The stream the encoded FLAC data is written to, null if writing to a FLACOutputStream directly
+	 */
+	private final OutputStream outputStream;
+
+	/**
+	 * The configuration the stream was opened with
+	 */
+	private final StreamConfiguration streamConfiguration;
+
+	/**
+	 * The pool the encoder is returned to once the stream is finished, null if it was not borrowed
+	 */
+	private final FlacEncoderPool encoderPool;
+
+	/**
+	 * Number of worker threads encoding blocks, 0 to encode on the calling thread
+	 */
+	private int threadCount = 0;
+
+	/**
+	 * Set once the stream header has been written
+	 */
+	private boolean opened = false;
+
+	/**
+	 * Set once the final block has been encoded
+	 */
+	private boolean finished = false;
+
+	/**
+	 * Constructor. The FLAC stream header is written when the first samples are added.
+	 * @param streamConfiguration Sample rate, bit depth and channel count of the samples that will be added
+	 * @param outputStream The stream the FLAC data is written to
+	 * @throws IOException If the configuration is invalid
+	 */
+	public FlacStreamEncoder(StreamConfiguration streamConfiguration, OutputStream outputStream) throws IOException {
+		this(streamConfiguration, new FLACStreamOutputStream(outputStream), outputStream, null);
+	}
+
+	/**
+	 * Constructor for seekable outputs such as a FLACFileOutputStream, which let the encoder
+	 * fill in the total sample count and MD5 of the stream header once encoding has finished.
+	 * The output is not closed by {@link #close()}.
+	 * @param streamConfiguration Sample rate, bit depth and channel count of the samples that will be added
+	 * @param flacOutputStream The FLAC output the data is written to
+	 * @throws IOException If the configuration is invalid
+	 */
+	public FlacStreamEncoder(StreamConfiguration streamConfiguration, FLACOutputStream flacOutputStream) throws IOException {
+		this(streamConfiguration, flacOutputStream, null, null);
+	}
+
+	/**
+	 * Constructor that borrows its javaFlacEncoder instance from a pool and returns it once the stream is finished.
+	 * @param streamConfiguration Sample rate, bit depth and channel count of the samples that will be added
+	 * @param outputStream The stream the FLAC data is written to
+	 * @param encoderPool The pool to borrow from, or null to create a new encoder
+	 * @throws IOException If the configuration is invalid
+	 */
+	public FlacStreamEncoder(StreamConfiguration streamConfiguration, OutputStream outputStream,
+			FlacEncoderPool encoderPool) throws IOException {
+		this(streamConfiguration, new FLACStreamOutputStream(outputStream), outputStream, encoderPool);
+	}
+
+	/**
+	 * Constructor for seekable outputs that borrows its javaFlacEncoder instance from a pool.
+	 * The output is not closed by {@link #close()}.
+	 * @param streamConfiguration Sample rate, bit depth and channel count of the samples that will be added
+	 * @param flacOutputStream The FLAC output the data is written to
+	 * @param encoderPool The pool to borrow from, or null to create a new encoder
+	 * @throws IOException If the configuration is invalid
+	 */
+	public FlacStreamEncoder(StreamConfiguration streamConfiguration, FLACOutputStream flacOutputStream,
+			FlacEncoderPool encoderPool) throws IOException {
+		this(streamConfiguration, flacOutputStream, null, encoderPool);
+	}
+
+	/**
+	 * Prepares the FLAC stream on the given output.
+	 * @param streamConfiguration The stream configuration
+	 * @param flacOutputStream The FLAC output the encoder writes to
+	 * @param outputStream The stream wrapped by flacOutputStream, or null
+	 * @param encoderPool The pool to borrow the encoder from, or null
+	 * @throws IOException If the configuration is invalid
+	 */
+	private FlacStreamEncoder(StreamConfiguration streamConfiguration, FLACOutputStream flacOutputStream,
+			OutputStream outputStream, FlacEncoderPool encoderPool) throws IOException {
+		this.streamConfiguration = streamConfiguration;
+		this.outputStream = outputStream;
+		this.encoderPool = encoderPool;
+		if(encoderPool != null){
+			this.flacEncoder = encoderPool.acquire(streamConfiguration);
+		}
+		else{
+			FLACEncoder encoder = new FLACEncoder();
+			this.flacEncoder = encoder.setStreamConfiguration(streamConfiguration) ? encoder : null;
+		}
+		if(flacEncoder == null){
+			throw new IOException("Invalid FLAC stream configuration");
+		}
+		flacEncoder.setOutputStream(flacOutputStream);
+	}
+
+	/**
+	 * Constructor. The FLAC stream header is written when the first samples are added.
+	 * @param streamConfiguration Sample rate, bit depth and channel count of the samples that will be added
+	 * @param channel The channel the FLAC data is written to
+	 * @throws IOException If the configuration is invalid
+	 */
+	public FlacStreamEncoder(StreamConfiguration streamConfiguration, WritableByteChannel channel) throws IOException {
+		this(streamConfiguration, Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Gets the configuration of the FLAC stream being written.
+	 * @return The stream configuration
+	 */
+	public StreamConfiguration getStreamConfiguration() {
+		return streamConfiguration;
+	}
+
+	/**
+	 * Gets the number of threads blocks are encoded on
+	 * @return The thread count, 0 if blocks are encoded on the calling thread
+	 */
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Sets the number of worker threads blocks are encoded on. Must be called before any samples are added.
+	 * @param threadCount The number of threads, 0 to encode on the calling thread
+	 */
+	public void setThreadCount(int threadCount) {
+		if(opened){
+			throw new IllegalStateException("Thread count must be set before samples are added");
+		}
+		this.threadCount = Math.max(0, threadCount);
+	}
+
+	/**
+	 * Writes the stream header if that has not happened yet.
+	 * @throws IOException If the header cannot be written
+	 */
+	private void open() throws IOException {
+		if(!opened){
+			opened = true;
+			if(threadCount > 0){
+				flacEncoder.setThreadCount(threadCount);
+			}
+			flacEncoder.openFLACStream();
+		}
+	}
+
+	/**
+	 * Adds samples to the stream and writes every FLAC block that is complete.
+	 * The array is copied, so it may be reused by the caller as soon as this method returns.
+	 * @param samples Interleaved samples, one int per sample per channel
+	 * @param frameCount The number of frames (samples per channel) in the array to add
+	 * @throws IOException If the encoded data cannot be written
+	 */
+	public void addSamples(int[] samples, int frameCount) throws IOException {
+		if(finished){
+			throw new IOException("FLAC stream already finished");
+		}
+		if(frameCount <= 0){
+			return;
+		}
+		open();
+		flacEncoder.addSamples(samples, frameCount);
+		int available = flacEncoder.fullBlockSamplesAvailableToEncode();
+		if(available > 0){
+			if(threadCount > 0){
+				//Waits while too many blocks are queued so memory stays bounded
+				flacEncoder.t_encodeSamples(available, false, threadCount * 2);
+			}
+			else{
+				flacEncoder.encodeSamples(available, false);
+			}
+		}
+	}
+
+	/**
+	 * Encodes whatever is left as the last block and flushes the output. The output stream is left open.
+	 * Calling this more than once has no effect.
+	 * @throws IOException If the encoded data cannot be written
+	 */
+	public void finish() throws IOException {
+		if(finished){
+			return;
+		}
+		finished = true;
+		open();
+		if(threadCount > 0){
+			//Waits until the workers have written every full block. The last, partial block is encoded below
+			//on this thread, because javaFlacEncoder's threaded path writes it without a frame number.
+			flacEncoder.t_encodeSamples(flacEncoder.fullBlockSamplesAvailableToEncode(), false, 0);
+		}
+		flacEncoder.encodeSamples(flacEncoder.samplesAvailableToEncode(), true);
+		if(encoderPool != null && threadCount == 0){
+			//Threaded encoders have stopped their worker threads, so only single threaded ones are reused
+			encoderPool.release(flacEncoder, streamConfiguration);
+		}
+		if(outputStream != null){
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Finishes the FLAC stream and closes the underlying output stream.
+	 * @throws IOException If the encoded data cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			if(outputStream != null){
+				outputStream.close();
+			}
+		}
+	}
+
+}
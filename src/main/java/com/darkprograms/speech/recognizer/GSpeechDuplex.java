@@ -2,14 +2,26 @@ package com.darkprograms.speech.recognizer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.sourceforge.javaflacencoder.*;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -19,7 +31,12 @@ import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.TargetDataLine;
 
-import com.darkprograms.speech.util.StringUtil;
+import com.darkprograms.speech.util.HttpStatusException;
+import com.darkprograms.speech.util.JsonPullParser;
+import com.darkprograms.speech.util.LineReader;
+import com.darkprograms.speech.util.PacedOutputStream;
+import com.darkprograms.speech.util.RateLimiter;
+import com.darkprograms.speech.util.RetryPolicy;
 
 //TODO Add a better logging system to GSpeechDuplex
 //TODO Find out why the V2 version of duplex no longer works.
@@ -29,6 +46,9 @@ import com.darkprograms.speech.util.StringUtil;
  * A duplex API opens two connections. One to an upstream and one to a downstream. The system allows
  * for continuous chunking on both up and downstream. This, in turn, allows for Google to return data
  * as data is sent to it. For this reason, this class uses listeners.
+ * <p>Each recognition streams on two tasks of the executor. At most {@link #DEFAULT_MAX_CONCURRENT_SESSIONS}
+ * recognitions stream at once unless {@link #setMaxConcurrentSessions(int)} says otherwise; further calls
+ * to <code>recognize</code> wait for a slot. The default executor runs the streams on daemon threads.</p>
  * @author Skylion (Aaron Gokaslan), Robert Rowntree.
  */
 public class GSpeechDuplex{
@@ -49,9 +69,9 @@ public class GSpeechDuplex{
 	private static final String GOOGLE_DUPLEX_SPEECH_BASE = "https://www.google.com/speech-api/full-duplex/v1/";
 
 	/**
-	 * Stores listeners
+	 * Stores listeners and delivers the responses to them and to the sessions' listeners, on threads of its own
 	 */
-	private List<GSpeechResponseListener> responseListeners = new ArrayList<GSpeechResponseListener>();
+	private final ResponseDispatcher responseDispatcher = new ResponseDispatcher();
 
 	/**
 	 * User defined API-KEY
@@ -64,14 +84,67 @@ public class GSpeechDuplex{
 	private String language = "auto";
 
 	/**
-	 * The maximum size the API will tolerate
+	 * Retries failed connection attempts, null to connect once
 	 */
-	private final static int MAX_SIZE = 1048576;
+	private RetryPolicy retryPolicy = null;
 
 	/**
-	 * Per specification, the final chunk of in a ChunkedOutputStream
+	 * Limits the up streams opened, null to use the limiter registered for the API key
 	 */
-	private final static byte[] FINAL_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+	private RateLimiter rateLimiter = null;
+
+	/**
+	 * Runs the up and down streams, null until the default executor is needed
+	 */
+	private volatile Executor executor = null;
+
+	/**
+	 * The default executor, created and shut down by this instance
+	 */
+	private ExecutorService ownExecutor = null;
+
+	/**
+	 * Number of recognitions streaming at once unless set otherwise, see {@link #setMaxConcurrentSessions(int)}
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_SESSIONS = 16;
+
+	/**
+	 * Limits the recognitions running at once, null for no limit
+	 */
+	private Semaphore sessionPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_SESSIONS, true);
+	private int maxConcurrentSessions = DEFAULT_MAX_CONCURRENT_SESSIONS;
+
+	/**
+	 * Up and down streams that have been started and not yet finished
+	 */
+	private final Set<Future<?>> tasks = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Size from which audio is recognized as long audio
+	 */
+	public final static int MAX_SIZE = 1048576;
+
+	/**
+	 * Uploads as fast as the connection allows, see {@link #setUploadSpeed(double)}
+	 */
+	public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Share of the PCM size a FLAC stream is assumed to have when its header does not give its length
+	 */
+	private static final double ASSUMED_FLAC_RATIO = 0.6;
+
+	/**
+	 * Multiple of real time audio is uploaded at
+	 */
+	private double uploadSpeed = 4.0;
+
+	/**
+	 * Seconds of audio uploaded right away, before the pacing applies
+	 */
+	private double uploadBurstSeconds = 2.0;
 
 	/**
 	 * Constructor
@@ -81,6 +154,8 @@ public class GSpeechDuplex{
 	 */
 	public GSpeechDuplex(String API_KEY){
 		this.API_KEY = API_KEY;
+		//Listeners hear the latest interim response every 100 ms at most, and every final one
+		this.responseDispatcher.setInterimWindowMillis(100);
 	}
 
 	/**
@@ -97,10 +172,197 @@ public class GSpeechDuplex{
 		this.language = language;
 	}
 
+	public RetryPolicy getRetryPolicy(){
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets the policy failed connection attempts are retried with. Only opening the down stream and
+	 * connecting the up stream are retried; audio that has partly been sent is never sent again.
+	 * @param retryPolicy The RetryPolicy to use, or null to connect once (default)
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy){
+		this.retryPolicy = retryPolicy;
+	}
+
+	public double getUploadSpeed(){
+		return uploadSpeed;
+	}
+
+	/**
+	 * Sets how fast audio data is uploaded, as a multiple of its real time bitrate. The bitrate is worked
+	 * out from the length and sample count of the FLAC stream, or estimated from the sample rate if the
+	 * stream does not say. Pacing keeps long recordings from being rejected; for short clips a higher
+	 * speed lowers the latency.
+	 * @param uploadSpeed The multiple, e.g. 1 to upload like a microphone would, or {@link #MAX_SPEED}. 4 by default.
+	 */
+	public void setUploadSpeed(double uploadSpeed){
+		if(!(uploadSpeed > 0)){
+			throw new IllegalArgumentException("uploadSpeed must be positive");
+		}
+		this.uploadSpeed = uploadSpeed;
+	}
+
+	public double getUploadBurstSeconds(){
+		return uploadBurstSeconds;
+	}
+
+	/**
+	 * Sets how much audio is uploaded right away, before the pacing of {@link #setUploadSpeed(double)} applies
+	 * @param uploadBurstSeconds The length of audio in seconds, 2 by default
+	 */
+	public void setUploadBurstSeconds(double uploadBurstSeconds){
+		this.uploadBurstSeconds = Math.max(0, uploadBurstSeconds);
+	}
+
+	public RateLimiter getRateLimiter(){
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the limiter every up stream takes a token from when it connects. The down stream does not
+	 * carry the API key and is not limited.
+	 * @param rateLimiter The RateLimiter to use, or null to use the one registered for the API key, if any (default)
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter){
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Gets the executor the up and down streams run on
+	 * @return The executor, the default one if none has been set
+	 */
+	public Executor getExecutor(){
+		Executor current = executor;
+		if(current != null){
+			return current;
+		}
+		synchronized(this){
+			if(executor == null){
+				ownExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS,
+						new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "GSpeechDuplex-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				executor = ownExecutor;
+			}
+			return executor;
+		}
+	}
+
+	/**
+	 * Sets the executor the up and down streams run on. Every recognition keeps two tasks busy for as long
+	 * as it streams, and a {@link ContinuousRecognition} two more for recording, so the executor must be able
+	 * to run at least that many tasks at once. Listeners are not called on it; the {@link ResponseDispatcher}
+	 * delivers on its own threads, see {@link #getResponseDispatcher()}.
+	 * An executor that is set is not shut down by {@link #shutdown()}.
+	 * @param executor The executor to use, or null for the default, which starts daemon threads as needed,
+	 * two per recognition up to the limit of {@link #setMaxConcurrentSessions(int)}, and lets them end once idle
+	 * @see #newVirtualThreadExecutor()
+	 */
+	public synchronized void setExecutor(Executor executor){
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates an executor that runs every task on a new virtual thread, which suits the long, mostly
+	 * idle streams of the duplex API. Virtual threads need Java 21; on older runtimes an executor of
+	 * ordinary daemon threads is returned instead.
+	 * @return The executor. The caller is responsible for shutting it down.
+	 */
+	public static ExecutorService newVirtualThreadExecutor(){
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "GSpeechDuplex-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	public synchronized int getMaxConcurrentSessions(){
+		return maxConcurrentSessions;
+	}
+
+	/**
+	 * Sets the maximum number of recognitions streaming at once. Once the limit is reached,
+	 * <code>recognize</code> blocks until an earlier recognition has finished. The limit also bounds the
+	 * threads of the default executor.
+	 * @param maxConcurrentSessions The limit, {@link #DEFAULT_MAX_CONCURRENT_SESSIONS} by default, 0 for no limit
+	 */
+	public synchronized void setMaxConcurrentSessions(int maxConcurrentSessions){
+		this.maxConcurrentSessions = Math.max(0, maxConcurrentSessions);
+		this.sessionPermits = maxConcurrentSessions > 0 ? new Semaphore(maxConcurrentSessions, true) : null;
+	}
+
+	/**
+	 * Stops accepting recognitions. Recognitions already started run to completion, after which the
+	 * default executor lets its threads end.
+	 */
+	public synchronized void shutdown(){
+		shutdown = true;
+		if(ownExecutor != null){
+			ownExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting recognitions and interrupts the streams of those that are running.
+	 */
+	public synchronized void shutdownNow(){
+		shutdown = true;
+		for(Future<?> task : tasks){
+			task.cancel(true);
+		}
+		if(ownExecutor != null){
+			ownExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns true once {@link #shutdown()} or {@link #shutdownNow()} has been called
+	 * @return True if no more recognitions are accepted
+	 */
+	public boolean isShutdown(){
+		return shutdown;
+	}
+
+	/**
+	 * Waits for the streams that are running to finish after a shutdown
+	 * @param timeout The longest time to wait
+	 * @param unit The unit of the timeout
+	 * @return True if every stream has finished, false if the timeout elapsed first
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!tasks.isEmpty()){
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0){
+				return false;
+			}
+			synchronized(tasks){
+				tasks.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Send a FLAC file with the specified sampleRate to the Duplex API
 	 * @param flacFile The file you wish to upload.
-	 * NOTE: Segment the file if duration is greater than 15 seconds.
+	 * Files of {@link #MAX_SIZE} bytes or more are recognized as long audio.
 	 * @param sampleRate The sample rate of the file.
 	 * @throws IOException If something has gone wrong with reading the file
 	 */
@@ -112,83 +374,287 @@ public class GSpeechDuplex{
 
 	/**
 	 * Send a byte[] to the URL with a specified sampleRate.
-	 * NOTE: The byte[] should contain no more than 15 seconds of audio.
-	 * Chunking is not fully implemented as of yet. Will not string data together for context yet.
+	 * Audio of {@link #MAX_SIZE} bytes or more is recognized as long audio, see
+	 * {@link #recognizeLongAudio(byte[], int)}, but without waiting for the results.
+	 * Blocks while {@link #getMaxConcurrentSessions()} recognitions are already streaming.
 	 * @param data The byte[] you want to send.
 	 * @param sampleRate The sample rate of aforementioned byte array.
 	 */
 	public void recognize(byte[] data, int sampleRate){
+		try {
+			openSession(data, sampleRate, data.length >= MAX_SIZE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-		if(data.length >= MAX_SIZE){//Temporary Chunking. Does not allow for Google to gather context.
-			byte[][] dataArray = chunkAudio(data);
-			for(byte[]array: dataArray){
-				recognize(array, sampleRate);
-			}
+	/**
+	 * Recognizes a recording of any length over a single duplex session, so Google keeps the context
+	 * of the whole recording. The audio is streamed at the upload speed, see {@link #setUploadSpeed(double)},
+	 * and Google is asked to keep recognizing after each utterance instead of stopping at the first one.
+	 * <p>The listeners receive every response as usual. Once Google has answered the whole recording,
+	 * the final responses are merged in order into the returned response.</p>
+	 * @param flacFile The FLAC file to recognize
+	 * @param sampleRate The sample rate of the file
+	 * @return The transcripts of all utterances joined with spaces, with their mean confidence
+	 * @throws IOException If the file cannot be read
+	 * @throws InterruptedException If interrupted while waiting for the results, which stops the recognition
+	 */
+	public GoogleResponse recognizeLongAudio(File flacFile, int sampleRate) throws IOException, InterruptedException{
+		return recognizeLongAudio(mapFileIn(flacFile), sampleRate);
+	}
+
+	/**
+	 * Recognizes a recording of any length over a single duplex session, so Google keeps the context
+	 * of the whole recording.
+	 * @param data The FLAC stream to recognize
+	 * @param sampleRate The sample rate of the stream
+	 * @return The transcripts of all utterances joined with spaces, with their mean confidence
+	 * @throws InterruptedException If interrupted while waiting for the results, which stops the recognition
+	 * @see #recognizeLongAudio(File, int)
+	 */
+	public GoogleResponse recognizeLongAudio(byte[] data, int sampleRate) throws InterruptedException{
+		DuplexSession session = openSession(data, sampleRate, true);
+		try {
+			session.await();
+		} catch (InterruptedException e) {
+			session.cancel();
+			throw e;
 		}
+		return session.getMergedResponse();
+	}
 
-		//Generates a unique ID for the response. 
-		final long PAIR = MIN + (long)(Math.random() * ((MAX - MIN) + 1L));
+	/**
+	 * Starts recognizing FLAC data without waiting for the results.
+	 * @param data The FLAC stream
+	 * @param sampleRate The sample rate of the stream
+	 * @param continuous True to keep recognizing after the first utterance, as for long audio
+	 * @return The handle of the session, to listen to its responses, wait for it or cancel it
+	 * @throws InterruptedException If interrupted while waiting for a recognition slot
+	 * @see #setMaxConcurrentSessions(int)
+	 */
+	public DuplexSession openSession(byte[] data, int sampleRate, boolean continuous) throws InterruptedException{
+		DuplexSession session = newSession();
+		//Generates the Upstream URL
+		final String API_UP_URL = GOOGLE_DUPLEX_SPEECH_BASE + 
+				"up?lang=" + language + "&lm=dictation&client=chromium&pair=" + session.getPairId() + 
+				"&key=" + API_KEY + (continuous ? "&continuous=true" : "");
 
-		//Generates the Downstream URL
-		final String API_DOWN_URL = GOOGLE_DUPLEX_SPEECH_BASE + "down?maxresults=1&pair=" + PAIR;
+		Future<?> downChannel = null;
+		try {
+			//Opens downChannel
+			downChannel = this.downChannel(session);
+			//Known before the up stream starts, so a failing up stream can end the session
+			session.setChannels(downChannel, null);
+			//Opens upChannel
+			session.setChannels(downChannel, this.upChannel(API_UP_URL, data, sampleRate, session));
+		} catch (RuntimeException e) {
+			session.release();
+			if(downChannel != null){
+				downChannel.cancel(true);
+			}
+			throw e;
+		}
+		return session;
+	}
 
+	/**
+	 * Starts streaming from a TargetDataLine without waiting for the results. Google recognizes
+	 * continuously and sends interim responses.
+	 * @param tl The line to stream from. Opened and started if it is not open yet.
+	 * @param af The format of the line
+	 * @return The handle of the session, to listen to its responses, wait for it or cancel it
+	 * @throws IOException If the stream cannot be started
+	 * @throws LineUnavailableException If the line cannot be opened
+	 * @throws InterruptedException If interrupted while waiting for a recognition slot
+	 */
+	public DuplexSession openSession(TargetDataLine tl, AudioFormat af) throws IOException, LineUnavailableException, InterruptedException {
+		DuplexSession session = newSession();
 		//Generates the Upstream URL
 		final String API_UP_URL = GOOGLE_DUPLEX_SPEECH_BASE + 
-				"up?lang=" + language + "&lm=dictation&client=chromium&pair=" + PAIR + 
-				"&key=" + API_KEY ;
+				"up?lang=" + language + "&lm=dictation&client=chromium&pair=" + session.getPairId() + 
+				"&key=" + API_KEY + "&continuous=true&interim=true"; //Tells Google to constantly monitor the stream;
+
+		Future<?> downChannel = null;
+		try {
+			//Opens downChannel
+			downChannel = this.downChannel(session);
+
+			//Opens upChannel
+			session.setChannels(downChannel, this.upChannel(API_UP_URL, tl, af, session));
+		} catch (IOException | LineUnavailableException | RuntimeException e) {
+			session.release();
+			if(downChannel != null){
+				downChannel.cancel(true);
+			}
+			throw e;
+		}
+		return session;
+	}
+
+	/**
+	 * Starts recognizing from a line without end. Whenever Google closes a session or a stream fails,
+	 * a new session is opened and the last moments of audio are sent again, so no words are lost
+	 * and the listeners keep receiving responses as if nothing happened.
+	 * @param tl The line to record from. Opened and started if it is not open yet.
+	 * @param af The format of the line, integer PCM
+	 * @return The running recognition, stop it once done
+	 * @throws IOException If the format cannot be encoded to FLAC
+	 * @throws LineUnavailableException If the line cannot be opened
+	 * @see ContinuousRecognition
+	 */
+	public ContinuousRecognition recognizeContinuously(TargetDataLine tl, AudioFormat af) throws IOException, LineUnavailableException{
+		ContinuousRecognition recognition = new ContinuousRecognition(this, tl, af);
+		recognition.start();
+		return recognition;
+	}
+
+	/**
+	 * Starts a session whose audio is written by the caller
+	 * @param writer Writes the FLAC stream once the up stream is connected
+	 * @param sampleRate The sample rate of the stream
+	 * @param parameters Additional parameters of the up stream, e.g. "&amp;continuous=true"
+	 * @return The handle of the session
+	 * @throws InterruptedException If interrupted while waiting for a recognition slot
+	 */
+	DuplexSession openSession(final AudioWriter writer, final int sampleRate, String parameters) throws InterruptedException{
+		final DuplexSession session = newSession();
+		final String API_UP_URL = GOOGLE_DUPLEX_SPEECH_BASE + 
+				"up?lang=" + language + "&lm=dictation&client=chromium&pair=" + session.getPairId() + 
+				"&key=" + API_KEY + parameters;
+
+		Future<?> downChannel = null;
+		try {
+			downChannel = this.downChannel(session);
+			//Known before the up stream starts, so a failing up stream can end the session
+			session.setChannels(downChannel, null);
+			session.setChannels(downChannel, startChannel(new Runnable() {
+				public void run() {
+					HttpsURLConnection httpConn = null;
+					try {
+						final URL url = new URL(API_UP_URL);
+						httpConn = withRetries(() -> getHttpsURLConnection(sampleRate, url));
+						OutputStream out = httpConn.getOutputStream();
+						writer.write(out, session);
+						//Closing sends the terminating chunk
+						out.close();
+						httpConn.getResponseCode();
+					} catch (IOException e) {
+						if(!(e instanceof InterruptedIOException)){
+							e.printStackTrace();
+						}
+						//Ends the session, so whoever waits for it notices the failure
+						session.cancel();
+					} finally {
+						if(httpConn != null){
+							httpConn.disconnect();
+						}
+					}
+				}
+			}, session));
+		} catch (RuntimeException e) {
+			session.release();
+			if(downChannel != null){
+				downChannel.cancel(true);
+			}
+			throw e;
+		}
+		return session;
+	}
+
+	/**
+	 * Writes the audio of a session to its up stream
+	 */
+	interface AudioWriter {
+
+		/**
+		 * Writes the FLAC stream. Returns once all audio has been written or the session should end.
+		 * @param out The up stream, closed by the caller
+		 * @param session The session the audio belongs to
+		 * @throws IOException If the audio cannot be written
+		 */
+		void write(OutputStream out, DuplexSession session) throws IOException;
 
-		//Opens downChannel
-		this.downChannel(API_DOWN_URL);
-		//Opens upChannel
-		this.upChannel(API_UP_URL, chunkAudio(data), sampleRate);
 	}
 
 	/**
 	 * This method allows you to stream a continuous stream of data to the API.
 	 * <p>Note: This feature is experimental.</p>
+	 * <p>Takes one of the {@link #getMaxConcurrentSessions()} slots for as long as it streams.</p>
 	 * @param tl 
 	 * @param af
 	 * @throws IOException
 	 * @throws LineUnavailableException
 	 */
 	public void recognize(TargetDataLine tl, AudioFormat af) throws IOException, LineUnavailableException, InterruptedException {
-		//Generates a unique ID for the response. 
-		final long PAIR = MIN + (long)(Math.random() * ((MAX - MIN) + 1L));
-
-		//Generates the Downstream URL
-		final String API_DOWN_URL = GOOGLE_DUPLEX_SPEECH_BASE + "down?maxresults=1&pair=" + PAIR;
+		DuplexSession session = openSession(tl, af);
+		try {
+			session.await();
+			session.stopUpload();
+		} catch (InterruptedException e) {
+			session.cancel();
+			throw e;
+		}
 
-		//Generates the Upstream URL
-		final String API_UP_URL = GOOGLE_DUPLEX_SPEECH_BASE + 
-				"up?lang=" + language + "&lm=dictation&client=chromium&pair=" + PAIR + 
-				"&key=" + API_KEY + "&continuous=true&interim=true"; //Tells Google to constantly monitor the stream;
+	}
 
-		//Opens downChannel
-		Thread downChannel = this.downChannel(API_DOWN_URL);
+	/**
+	 * Waits for a recognition slot
+	 * @return The session the streams of the recognition belong to, with a new pair id
+	 * @throws InterruptedException If interrupted while waiting for a slot
+	 */
+	private DuplexSession newSession() throws InterruptedException{
+		if(shutdown){
+			throw new RejectedExecutionException("GSpeechDuplex has been shut down");
+		}
+		Semaphore permits;
+		synchronized(this){
+			permits = sessionPermits;
+		}
+		if(permits != null){
+			permits.acquire();
+		}
+		//Generates a unique ID for the response. 
+		final long PAIR = MIN + (long)(Math.random() * ((MAX - MIN) + 1L));
+		return new DuplexSession(PAIR, permits);
+	}
 
-		//Opens upChannel
-		Thread upChannel = this.upChannel(API_UP_URL, tl, af);
+	/**
+	 * Runs one stream of a session on the executor
+	 * @param task The stream
+	 * @param session The session the stream belongs to
+	 * @return The future of the stream, cancel it to interrupt the stream
+	 */
+	private Future<?> startChannel(Runnable task, final DuplexSession session){
+		FutureTask<Void> future = new FutureTask<Void>(task, null) {
+			@Override
+			protected void done() {
+				tasks.remove(this);
+				session.channelDone();
+				synchronized(tasks){
+					tasks.notifyAll();
+				}
+			}
+		};
+		tasks.add(future);
 		try {
-			downChannel.join();
-			upChannel.interrupt();
-			upChannel.join();
-		} catch (InterruptedException e) {
-			downChannel.interrupt();
-			downChannel.join();
-			upChannel.interrupt();
-			upChannel.join();
+			getExecutor().execute(future);
+		} catch (RejectedExecutionException e) {
+			future.cancel(false);
+			throw e;
 		}
-
+		return future;
 	}
 
 	/**
-	 * This code opens a new Thread that connects to the downstream URL. Due to threading,
+	 * This code starts a task that connects to the downstream URL. Due to threading,
 	 * the best way to handle this is through the use of listeners.
-	 * @param The URL you want to connect to.
+	 * @param session The session the stream belongs to. Receives the responses after the listeners.
 	 */
-	private Thread downChannel(String urlStr) {
-		final String url = urlStr;
-		Thread downChannelThread = new Thread ("Downstream Thread") {
+	private Future<?> downChannel(final DuplexSession session) {
+		//Generates the Downstream URL
+		final String url = GOOGLE_DUPLEX_SPEECH_BASE + "down?maxresults=1&pair=" + session.getPairId();
+		Runnable downChannelTask = new Runnable() {
 			public void run() {
 				// handler for DOWN channel http response stream - httpsUrlConn
 				// response handler should manage the connection.... ??
@@ -200,26 +666,50 @@ public class GSpeechDuplex{
 				// to wake up the listener when there are additional bytes.
 				// The mechanics of the TLS session should be transparent. Just use
 				// httpsUrlConn and allow it enough time to do its work.
-				Scanner inStream = openHttpsConnection(url);
-				if(inStream == null){
-					//ERROR HAS OCCURED
-					System.out.println("Error has occured");
-					return;
-				}
-				String response;
-				while(inStream.hasNext() && (response = inStream.nextLine()) != null){
-					if(response.length()>17){//Prevents blank responses from Firing
-						GoogleResponse gr = new GoogleResponse();
-						parseResponse(response, gr);
-						fireResponseEvent(gr);
+				try {
+					LineReader inStream = openHttpsConnection(url);
+					if(inStream == null){
+						//ERROR HAS OCCURED
+						System.out.println("Error has occured");
+						//Nobody would hear the answer to the audio still being uploaded
+						session.cancel();
+						return;
+					}
+					String response;
+					JsonPullParser parser = new JsonPullParser();
+					try {
+						while((response = inStream.readLine()) != null){
+							if(response.length()>17){//Prevents blank responses from Firing
+								GoogleResponse gr = new GoogleResponse();
+								parseResponse(parser, response, gr);
+								session.record(gr);
+								responseDispatcher.dispatch(gr, session.listeners);
+							}
+						}
+					} catch (InterruptedException e) {
+						//Cancelled
+					} catch (IOException e) {
+						if(!Thread.currentThread().isInterrupted()){
+							e.printStackTrace();
+						}
+					}
+					try {
+						inStream.close();
+					} catch (IOException e) {
+						//Already broken
 					}
+					System.out.println("Finished write on down stream...");
+				} finally {
+					//The session is complete once its listeners have heard everything. The stream does not wait for that.
+					responseDispatcher.whenDelivered(session.listeners, new Runnable() {
+						public void run() {
+							session.delivered();
+						}
+					});
 				}
-				inStream.close();
-				System.out.println("Finished write on down stream...");
 			}
 		};
-		downChannelThread.start();
-		return downChannelThread;
+		return startChannel(downChannelTask, session);
 	}
 
 
@@ -228,17 +718,17 @@ public class GSpeechDuplex{
 	 * @param urlStr The URL string you want to upload 2
 	 * @param data The data you want to send to the URL
 	 * @param sampleRate The specified sample rate of the data.
+	 * @param session The session the stream belongs to
 	 */
-	private void upChannel(String urlStr, byte[][] data, int sampleRate) {
+	private Future<?> upChannel(String urlStr, byte[] data, int sampleRate, DuplexSession session) {
 		final String murl = urlStr;
-		final byte[][] mdata = data;
+		final byte[] mdata = data;
 		final int mSampleRate = sampleRate;
-		new Thread ("Upstream File Thread") {
+		return startChannel(new Runnable() {
 			public void run() {
-				openHttpsPostConnection(murl, mdata, mSampleRate);
-				//Google does not return data via this URL
+				openHttpsPostConnection(murl, mdata, mSampleRate, session);
 			}
-		}.start();
+		}, session);
 	}
 
 	/**
@@ -246,9 +736,10 @@ public class GSpeechDuplex{
 	 * @param urlStr The URL to stream to
 	 * @param tl The target data line to stream from.
 	 * @param af The AudioFormat to stream with.
+	 * @param session The session the stream belongs to
 	 * @throws LineUnavailableException If cannot open or stream the TargetDataLine.
 	 */
-	private Thread upChannel(String urlStr, TargetDataLine tl, AudioFormat af) throws IOException, LineUnavailableException{
+	private Future<?> upChannel(String urlStr, TargetDataLine tl, AudioFormat af, DuplexSession session) throws IOException, LineUnavailableException{
 		final String murl = urlStr;
 		final TargetDataLine mtl = tl;
 		final AudioFormat maf = af;
@@ -256,44 +747,42 @@ public class GSpeechDuplex{
 			mtl.open(maf);
 			mtl.start();
 		}
-		Thread upChannelThread = new Thread ("Upstream Thread") {
+		return startChannel(new Runnable() {
 			public void run() {
-				openHttpsPostConnection(murl, mtl, (int)maf.getSampleRate());
+				openHttpsPostConnection(murl, mtl, (int)maf.getSampleRate(), session);
 			}
-		};
-		upChannelThread.start();
-		return upChannelThread;
+		}, session);
 
 	}
 
 	/**
 	 * Opens a HTTPS connection to the specified URL string
 	 * @param urlStr The URL you want to visit
-	 * @return The Scanner to access aforementioned data.
+	 * @return The LineReader to access aforementioned data.
 	 */
-	private Scanner openHttpsConnection(String urlStr) {
-		int resCode = -1;
+	private LineReader openHttpsConnection(final String urlStr) {
 		try {
-			URL url = new URL(urlStr);
-			URLConnection urlConn = url.openConnection();
-			if (!(urlConn instanceof HttpsURLConnection)) {
-				throw new IOException ("URL is not an Https URL");
-			}
-			HttpsURLConnection httpConn = (HttpsURLConnection)urlConn;
-			httpConn.setAllowUserInteraction(false);
-			// TIMEOUT is required
-			httpConn.setInstanceFollowRedirects(true);
-			httpConn.setRequestMethod("GET");
-			httpConn.connect();
-			resCode = httpConn.getResponseCode();
-			if (resCode == HttpsURLConnection.HTTP_OK) {
-				return new Scanner(httpConn.getInputStream(), "UTF-8");
-			}
-			else{
-				System.out.println("Error: " + resCode);
-			}
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+			return withRetries(() -> {
+				URL url = new URL(urlStr);
+				URLConnection urlConn = url.openConnection();
+				if (!(urlConn instanceof HttpsURLConnection)) {
+					throw new MalformedURLException("URL is not an Https URL");
+				}
+				HttpsURLConnection httpConn = (HttpsURLConnection)urlConn;
+				httpConn.setAllowUserInteraction(false);
+				// TIMEOUT is required
+				httpConn.setInstanceFollowRedirects(true);
+				httpConn.setRequestMethod("GET");
+				httpConn.connect();
+				int resCode = httpConn.getResponseCode();
+				if (resCode != HttpsURLConnection.HTTP_OK) {
+					httpConn.disconnect();
+					throw new HttpStatusException(resCode, "Error");
+				}
+				return new LineReader(httpConn.getInputStream());
+			});
+		} catch (HttpStatusException e) {
+			System.out.println("Error: " + e.getStatusCode());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -301,98 +790,89 @@ public class GSpeechDuplex{
 	}
 
 	/**
-	 * Opens a HTTPSPostConnection that posts data from a TargetDataLine input
+	 * Opens a HTTPSPostConnection that posts data from a TargetDataLine input.
+	 * If the upload fails the session is cancelled.
 	 * @param murl The URL you want to post to.
 	 * @param mtl The TargetDataLine you want to post data from. <b>Note should be open</b>
+	 * @param sampleRate The sample rate of the line
+	 * @param session The session the stream belongs to
 	 */
-	private void openHttpsPostConnection(String murl, TargetDataLine mtl, int sampleRate) {
-		URL url;
+	private void openHttpsPostConnection(String murl, TargetDataLine mtl, int sampleRate, DuplexSession session) {
+		HttpsURLConnection httpConn = null;
 		try {
-			url = new URL(murl);
-			HttpsURLConnection httpConn = getHttpsURLConnection(sampleRate, url);
+			final URL url = new URL(murl);
+			httpConn = withRetries(() -> getHttpsURLConnection(sampleRate, url));
 			// this opens a connection, then sends POST & headers.
 			final OutputStream out = httpConn.getOutputStream();
-			//Note : if the audio is more than 15 seconds
-			// dont write it to UrlConnInputStream all in one block as this sample does.
-			// Rather, segment the byteArray and on intermittently, sleeping thread
-			// supply bytes to the urlConn Stream at a rate that approaches
-			// the bitrate ( =30K per sec. in this instance ).
+			//The line delivers the audio in real time, so it needs no pacing
 			System.out.println("Starting to write data to output...");
-			final AudioInputStream ais = new AudioInputStream(mtl);;
+			final AudioInputStream ais = new AudioInputStream(mtl);
 			AudioSystem.write(ais, FLACFileWriter.FLAC, out);
 			//Output Stream is automatically closed
-			// do you need the trailer?
-			// NOW you can look at the status.
-
-			//Diagonostic Code.
-			/*int resCode = httpConn.getResponseCode();
+			int resCode = httpConn.getResponseCode();
 			if (resCode / 100 != 2) {
-				System.out.println("ERROR");
-			}
-			Scanner scanner = new Scanner(httpConn.getInputStream());
-			while(scanner.hasNextLine()){
-				System.out.println("UPSTREAM READS:" + scanner.nextLine());
+				System.out.println("Error: " + resCode);
+				session.cancel();
 			}
-			scanner.close();*/
 			System.out.println("Upstream Closed...");
-		}catch(IOException ex){
-			ex.printStackTrace();
+		} catch (IOException ex) {
+			//Interrupted when the upload is stopped or the session cancelled
+			if(!(ex instanceof InterruptedIOException) && !Thread.currentThread().isInterrupted()){
+				ex.printStackTrace();
+				//Ends the session, so whoever waits for it notices the failure
+				session.cancel();
+			}
+		} finally {
+			if(httpConn != null){
+				httpConn.disconnect();
+			}
 		}
 	}
 
 	/**
-	 * Opens a chunked HTTPS post connection and returns a Scanner with incoming data from Google Server
-	 * Used for to get UPStream
-	 * Chunked HTTPS ensures unlimited file size.
+	 * Posts FLAC data to the up stream over a chunked HTTPS connection, paced as set with
+	 * {@link #setUploadSpeed(double)}. Chunked HTTPS ensures unlimited file size.
+	 * Google does not answer on the up stream; if the upload fails the session is cancelled.
 	 * @param urlStr The String for the URL
 	 * @param data The data you want to send the server 
 	 * @param sampleRate The sample rate of the flac file.
-	 * @return A Scanner to access the server response. (Probably will never be used)
+	 * @param session The session the stream belongs to
 	 */
-	private Scanner openHttpsPostConnection(String urlStr, byte[][] data, int sampleRate){
-		byte[][] mextrad = data;
-		int resCode = -1;
-		OutputStream out = null;
-		// int http_status;
+	private void openHttpsPostConnection(String urlStr, byte[] data, int sampleRate, DuplexSession session){
+		HttpsURLConnection httpConn = null;
 		try {
-			URL url = new URL(urlStr);
-			HttpsURLConnection httpConn = getHttpsURLConnection(sampleRate, url);
+			final URL url = new URL(urlStr);
+			httpConn = withRetries(() -> getHttpsURLConnection(sampleRate, url));
 			// this opens a connection, then sends POST & headers.
-			out = httpConn.getOutputStream();
+			OutputStream out = httpConn.getOutputStream();
 			//Note : if the audio is more than 15 seconds
-			// dont write it to UrlConnInputStream all in one block as this sample does.
-			// Rather, segment the byteArray and on intermittently, sleeping thread
-			// supply bytes to the urlConn Stream at a rate that approaches
-			// the bitrate ( =30K per sec. in this instance ).
+			// dont write it to UrlConnInputStream all in one block.
+			// Rather, supply bytes to the urlConn Stream in small chunks
+			// at a rate that approaches the bitrate, so Google thinks its a mic.
+			double bytesPerSecond = realTimeBytesPerSecond(data, sampleRate);
+			out = new PacedOutputStream(out, bytesPerSecond * uploadSpeed, (long)(bytesPerSecond * uploadBurstSeconds));
 			System.out.println("Starting to write");
-			for(byte[] dataArray: mextrad){
-				out.write(dataArray); // one big block supplied instantly to the underlying chunker wont work for duration > 15 s.
-				try {
-					Thread.sleep(1000);//Delays the Audio so Google thinks its a mic.
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			out.write(FINAL_CHUNK);
+			out.write(data);
+			//Closing sends the terminating chunk
+			out.close();
 			System.out.println("IO WRITE DONE");
-			// do you need the trailer?
-			// NOW you can look at the status.
-			resCode = httpConn.getResponseCode();
+			int resCode = httpConn.getResponseCode();
 			if (resCode / 100 != 2) {
-				System.out.println("ERROR");
+				System.out.println("Error: " + resCode);
+				session.cancel();
 			}
-			if (resCode == HttpsURLConnection.HTTP_OK) {
-				return new Scanner(httpConn.getInputStream(), "UTF-8");
+		} catch (IOException e) {
+			//Interrupted when cancelled, e.g. by shutdownNow()
+			if(!(e instanceof InterruptedIOException)){
+				e.printStackTrace();
 			}
-			else{
-				System.out.println("HELP: " + resCode);
+			//Ends the session, so whoever waits for it notices the failure
+			session.cancel();
+		} finally {
+			if(httpConn != null){
+				httpConn.disconnect();
 			}
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
-		return null;
 	}
 
 	/**
@@ -402,6 +882,10 @@ public class GSpeechDuplex{
 	 * @throws IOException
 	 */
 	private HttpsURLConnection getHttpsURLConnection(int sampleRate, URL url) throws IOException {
+		RateLimiter limiter = rateLimiter != null ? rateLimiter : RateLimiter.forApiKey(API_KEY);
+		if(limiter != null){
+			limiter.acquire();
+		}
 		URLConnection urlConn = url.openConnection();
 		if (!(urlConn instanceof HttpsURLConnection)) {
             throw new IOException ("URL is not an Https URL");
@@ -419,6 +903,40 @@ public class GSpeechDuplex{
 		return httpConn;
 	}
 
+	/**
+	 * Runs the attempt, retrying it as the retry policy allows
+	 * @param attempt The attempt, e.g. opening a connection
+	 * @return The result of the first successful attempt
+	 * @throws IOException The failure of the last attempt
+	 */
+	private <T> T withRetries(RetryPolicy.Attempt<T> attempt) throws IOException {
+		RetryPolicy policy = retryPolicy;
+		return policy != null ? policy.call(attempt) : attempt.run();
+	}
+
+	/**
+	 * Works out the bitrate of a FLAC stream played back in real time. The STREAMINFO block that follows
+	 * the "fLaC" marker gives the total number of samples; if it does not, the size of the stream is
+	 * estimated from the sample rate, assuming 16 bit mono audio that FLAC compresses to 60%.
+	 * @param data The FLAC stream
+	 * @param sampleRate The sample rate of the stream
+	 * @return The bitrate in bytes per second
+	 */
+	private static double realTimeBytesPerSecond(byte[] data, int sampleRate){
+		if(data.length >= 26 && data[0] == 'f' && data[1] == 'L' && data[2] == 'a' && data[3] == 'C'){
+			//36 bit sample count after the 20 bit sample rate, 3 bit channels and 5 bit sample size
+			long totalSamples = ((data[21] & 0x0FL) << 32) | ((data[22] & 0xFFL) << 24)
+					| ((data[23] & 0xFFL) << 16) | ((data[24] & 0xFFL) << 8) | (data[25] & 0xFFL);
+			if(totalSamples > 0 && sampleRate > 0){
+				return Math.max(1, data.length * (double)sampleRate / totalSamples);
+			}
+			int channels = ((data[20] & 0x0E) >> 1) + 1;
+			int bitsPerSample = (((data[20] & 0x01) << 4) | ((data[21] & 0xF0) >> 4)) + 1;
+			return Math.max(1, sampleRate * channels * bitsPerSample / 8.0 * ASSUMED_FLAC_RATIO);
+		}
+		return Math.max(1, sampleRate * 2 * ASSUMED_FLAC_RATIO);
+	}
+
 	/**
 	 * Converts the file into a byte[]. Also Android compatible. :)
 	 * @param infile The File you want to get the byte[] from.
@@ -431,80 +949,42 @@ public class GSpeechDuplex{
 
 	/**
 	 * Parses the String into a GoogleResponse object
+	 * @param parser The parser of the down stream, reused for every line
 	 * @param rawResponse The String you want to parse
 	 * @param gr the GoogleResponse object to save the data into.
 	 */
-	private void parseResponse(String rawResponse, GoogleResponse gr){
-		if(rawResponse == null || !rawResponse.contains("\"result\"")
-				|| rawResponse.equals("{\"result\":[]}")){ return; }
-		gr.getOtherPossibleResponses().clear(); // Emptys the list
-		if(rawResponse.contains("\"confidence\":")){
-			String confidence = StringUtil.substringBetween(rawResponse, "\"confidence\":", "}");
-			gr.setConfidence(confidence);
-		}
-		else{
-			gr.setConfidence(String.valueOf(1));
-		}
-		String response = StringUtil.substringBetween(rawResponse, "[{\"transcript\":\"", "\"}],");
-		if (response == null) {
-			response = StringUtil.substringBetween(rawResponse, "[{\"transcript\":\"", "\",\"");
-		}
-		gr.setResponse(response);
-		gr.setFinalResponse(rawResponse.contains("\"final\":true"));
-		String[] currentHypos = rawResponse.split("\\[\\{\"transcript\":\"");
-		for(int i = 2; i<currentHypos.length; i++){
-			String cleaned = currentHypos[i].substring(0, currentHypos[i].indexOf("\""));
-			gr.getOtherPossibleResponses().add(cleaned);
+	private void parseResponse(JsonPullParser parser, String rawResponse, GoogleResponse gr){
+		try {
+			GoogleResponseParser.parseLine(parser, rawResponse, gr);
+		} catch (IOException e) {
+			//Not JSON; whatever could be read is kept
 		}
 	}
 
 	/**
 	 * Adds GSpeechResponse Listeners that fire when Google sends a response.
+	 * Listeners are called on the threads of the ResponseDispatcher, not on the thread reading from Google.
+	 * The responses of one session arrive in order, one at a time; those of different sessions may arrive at once.
 	 * @param rl The Listeners you want to add
 	 */
-	public synchronized void addResponseListener(GSpeechResponseListener rl){
-		responseListeners.add(rl);
+	public void addResponseListener(GSpeechResponseListener rl){
+		responseDispatcher.addResponseListener(rl);
 	}
 
 	/**
 	 * Removes GSpeechResponseListeners that fire when Google sends a response.
 	 * @param rl The Listeners you want to remove
 	 */
-	public synchronized void removeResponseListener(GSpeechResponseListener rl){
-		responseListeners.remove(rl);
+	public void removeResponseListener(GSpeechResponseListener rl){
+		responseDispatcher.removeResponseListener(rl);
 	}
 
 	/**
-	 * Fires responseListeners
-	 * @param gr The Google Response (in this case the response event).
+	 * Gets the dispatcher that delivers the responses to the listeners, e.g. to choose what happens
+	 * when listeners cannot keep up
+	 * @return The ResponseDispatcher
 	 */
-	private synchronized void fireResponseEvent(GoogleResponse gr){
-		for(GSpeechResponseListener gl: responseListeners){
-			gl.onResponse(gr);
-		}
-	}
-
-	/**
-	 * Chunks audio into smaller chunks to stream to the duplex API
-	 * @param data The data you want to break into smaller pieces
-	 * @return the byte[][] containing on array of chunks.
-	 */
-	private byte[][] chunkAudio(byte[] data) {
-		if(data.length >= MAX_SIZE){//If larger than 1MB
-			int frame = MAX_SIZE/2;
-			int numOfChunks = (int)(data.length/((double)frame)) + 1;
-			byte[][] data2D = new byte[numOfChunks][];
-			for(int i = 0, j = 0; i<data.length && j<data2D.length; i+=frame, j++){
-				int length = (data.length - i < frame)? data.length - i: frame;
-				data2D[j] = new byte[length];
-				System.arraycopy(data, i, data2D[j], 0, length);
-			}
-			return data2D;
-		}	
-		else{
-			byte[][] tmpData = new byte[1][data.length];
-			System.arraycopy(data, 0, tmpData[0], 0, data.length);
-			return tmpData;
-		}
+	public ResponseDispatcher getResponseDispatcher(){
+		return responseDispatcher;
 	}
 }
@@ -1,6 +1,8 @@
 package com.darkprograms.speech.recognizer;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /******************************************************************************
@@ -15,15 +17,17 @@ public class GoogleResponse {
      */
     private String response;
     /**
-     * Variable that holds the confidence score
+     * Variable that holds the confidence score, NaN if Google did not send one
      */
-    private String confidence;
+    private double confidence = Double.NaN;
 
     /**
-     * List that holds other possible responses for this request.
+     * Other possible responses for this request and their confidence scores.
+     * Only allocated once the first alternative is added, since most responses have none.
      */
-    private List<String> otherPossibleResponses = new ArrayList<String>(20);
-
+    private String[] alternatives;
+    private double[] alternativeConfidences;
+    private int alternativeCount = 0;
 
     private boolean finalResponse = true;
     /**
@@ -55,37 +59,130 @@ public class GoogleResponse {
     /**
      * Gets the confidence score for the specific request
      *
-     * @return The confidence score, ex .922343324323
+     * @return The confidence score, ex .922343324323, or null if there is none
+     * @see #getConfidenceValue()
      */
     public String getConfidence() {
+        return Double.isNaN(confidence) ? null : String.valueOf(confidence);
+    }
+
+    /**
+     * Gets the confidence score for the specific request
+     *
+     * @return The confidence score between 0 and 1, or NaN if there is none
+     */
+    public double getConfidenceValue() {
         return confidence;
     }
 
     /**
      * Set the confidence score for this request
      *
-     * @param confidence The confidence score
+     * @param confidence The confidence score. Cleared if it is null or not a number.
      */
     protected void setConfidence(String confidence) {
+        double value = Double.NaN;
+        if(confidence != null){
+            try {
+                value = Double.parseDouble(confidence.trim());
+            } catch (NumberFormatException e) {
+                //Leaves the confidence unset
+            }
+        }
+        this.confidence = value;
+    }
+
+    /**
+     * Set the confidence score for this request
+     *
+     * @param confidence The confidence score, NaN for none
+     */
+    protected void setConfidence(double confidence) {
         this.confidence = confidence;
     }
 
+    /**
+     * Adds another possible response for this request.
+     *
+     * @param transcript The text of the alternative
+     * @param confidence Its confidence score, NaN if Google did not send one
+     */
+    void addAlternative(String transcript, double confidence) {
+        if(alternatives == null){
+            alternatives = new String[4];
+            alternativeConfidences = new double[4];
+        }
+        else if(alternativeCount == alternatives.length){
+            alternatives = Arrays.copyOf(alternatives, alternativeCount * 2);
+            alternativeConfidences = Arrays.copyOf(alternativeConfidences, alternativeCount * 2);
+        }
+        alternatives[alternativeCount] = transcript;
+        alternativeConfidences[alternativeCount] = confidence;
+        alternativeCount++;
+    }
+
+    /**
+     * Removes all other possible responses.
+     */
+    void clearAlternatives() {
+        if(alternatives != null){
+            Arrays.fill(alternatives, 0, alternativeCount, null);
+        }
+        alternativeCount = 0;
+    }
+
     /**
      * Get other possible responses for this request.
-     * @return other possible responses
+     * @return other possible responses, as a read only list
      */
     public List<String> getOtherPossibleResponses() {
-        return otherPossibleResponses;
+        if(alternativeCount == 0){
+            return Collections.emptyList();
+        }
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                checkIndex(index);
+                return alternatives[index];
+            }
+
+            @Override
+            public int size() {
+                return alternativeCount;
+            }
+        };
     }
-    
+
+    /**
+     * Gets the confidence score of another possible response
+     * @param index Index of the response in {@link #getOtherPossibleResponses()}
+     * @return The confidence score, or NaN if Google did not send one
+     */
+    public double getOtherPossibleConfidence(int index) {
+        checkIndex(index);
+        return alternativeConfidences[index];
+    }
+
     /**
      * Gets all returned responses for this request
-     * @return All returned responses
+     * @return All returned responses, the response first, as a read only list
      */
     public List<String> getAllPossibleResponses() {
-    	List<String> tmp = otherPossibleResponses;
-    	tmp.add(0,response);
-    	return tmp;
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if(index == 0){
+                    return response;
+                }
+                checkIndex(index - 1);
+                return alternatives[index - 1];
+            }
+
+            @Override
+            public int size() {
+                return alternativeCount + 1;
+            }
+        };
     }
 
     public boolean isFinalResponse() {
@@ -95,4 +192,10 @@ public class GoogleResponse {
     public void setFinalResponse(boolean finalResponse) {
         this.finalResponse = finalResponse;
     }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= alternativeCount){
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + alternativeCount);
+        }
+    }
 }
@@ -0,0 +1,223 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.darkprograms.speech.util.JsonPullParser;
+import com.darkprograms.speech.util.JsonPullParser.Token;
+
+/**
+ * Reads the JSON responses of the speech API into a GoogleResponse in a single pass.
+ * <p>Only the transcripts, confidences and final flags are picked out; everything else is skipped without
+ * being turned into objects. For every result of a recognizer response the alternative with the highest
+ * confidence becomes the response and the other alternatives are added to the other possible responses.</p>
+ * <p>Lines streamed by the duplex and chunked APIs, which may be interim, are read with
+ * {@link #parseLine(JsonPullParser, String, GoogleResponse)} instead.</p>
+ */
+final class GoogleResponseParser {
+
+	private GoogleResponseParser() {
+	}
+
+	/**
+	 * Parses every response in the text, e.g. all the lines of a recognizer response.
+	 * @param reader The response text. Read to the end but not closed.
+	 * @param googleResponse The GoogleResponse to fill in
+	 * @throws IOException If the text cannot be read or is not JSON
+	 */
+	static void parse(Reader reader, GoogleResponse googleResponse) throws IOException {
+		JsonPullParser parser = new JsonPullParser(reader);
+		Token token;
+		while((token = parser.next()) != Token.END_DOCUMENT){
+			if(token != Token.BEGIN_OBJECT){
+				throw new IOException("Unexpected " + token + " in response");
+			}
+			parseResponse(parser, googleResponse);
+		}
+	}
+
+	/**
+	 * Parses one streamed response line. The first transcript becomes the response, with its confidence or
+	 * 1 if Google sent none, and every later transcript, of the same result or of later ones, becomes an
+	 * other possible response. The response is final if a result says so. A line without results leaves
+	 * the GoogleResponse as it is.
+	 * @param parser The parser to reuse, see {@link JsonPullParser#reset(String)}
+	 * @param line The line
+	 * @param googleResponse The GoogleResponse to fill in
+	 * @throws IOException If the line is not JSON
+	 */
+	static void parseLine(JsonPullParser parser, String line, GoogleResponse googleResponse) throws IOException {
+		parser.reset(line);
+		Alternative alternative = new Alternative();
+		int transcripts = -1;
+		Token token;
+		while((token = parser.next()) != Token.END_DOCUMENT){
+			if(token != Token.BEGIN_OBJECT){
+				throw new IOException("Unexpected " + token + " in response");
+			}
+			while(parser.next() == Token.NAME){
+				if(!parser.textEquals("result")){
+					parser.skipValue();
+					continue;
+				}
+				expect(parser, Token.BEGIN_ARRAY);
+				while(parser.next() == Token.BEGIN_OBJECT){
+					if(transcripts < 0){
+						googleResponse.setFinalResponse(false);
+						googleResponse.setConfidence(1d);
+						transcripts = 0;
+					}
+					transcripts = parseStreamedResult(parser, googleResponse, alternative, transcripts);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses one element of the result array of a streamed line whose opening brace has been read
+	 * @return The number of transcripts read from the line so far
+	 */
+	private static int parseStreamedResult(JsonPullParser parser, GoogleResponse googleResponse,
+			Alternative alternative, int transcripts) throws IOException {
+		while(parser.next() == Token.NAME){
+			if(parser.textEquals("alternative")){
+				expect(parser, Token.BEGIN_ARRAY);
+				while(parser.next() == Token.BEGIN_OBJECT){
+					parseAlternative(parser, alternative);
+					if(transcripts++ == 0){
+						googleResponse.setResponse(alternative.transcript);
+						if(!Double.isNaN(alternative.confidence)){
+							googleResponse.setConfidence(alternative.confidence);
+						}
+					}
+					else{
+						googleResponse.addAlternative(alternative.transcript, alternative.confidence);
+					}
+				}
+			}
+			else if(parser.textEquals("final")){
+				Token value = parser.next();
+				if(value == Token.TRUE){
+					googleResponse.setFinalResponse(true);
+				}
+				else{
+					skipRest(parser, value);
+				}
+			}
+			else{
+				parser.skipValue();
+			}
+		}
+		return transcripts;
+	}
+
+	/**
+	 * Parses one response object whose opening brace has been read
+	 */
+	private static void parseResponse(JsonPullParser parser, GoogleResponse googleResponse) throws IOException {
+		while(parser.next() == Token.NAME){
+			if(parser.textEquals("result")){
+				expect(parser, Token.BEGIN_ARRAY);
+				while(parser.next() == Token.BEGIN_OBJECT){
+					parseResult(parser, googleResponse);
+				}
+			}
+			else{
+				parser.skipValue();
+			}
+		}
+	}
+
+	/**
+	 * Parses one element of the result array whose opening brace has been read
+	 */
+	private static void parseResult(JsonPullParser parser, GoogleResponse googleResponse) throws IOException {
+		Alternative alternative = new Alternative();
+		double prevConfidence = 0;
+		while(parser.next() == Token.NAME){
+			if(!parser.textEquals("alternative")){
+				parser.skipValue();
+				continue;
+			}
+			expect(parser, Token.BEGIN_ARRAY);
+			while(parser.next() == Token.BEGIN_OBJECT){
+				parseAlternative(parser, alternative);
+				if(alternative.confidence > prevConfidence){
+					googleResponse.setResponse(alternative.transcript);
+					googleResponse.setConfidence(alternative.confidence);
+					prevConfidence = alternative.confidence;
+				}
+				else{
+					googleResponse.addAlternative(alternative.transcript, alternative.confidence);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses one element of an alternative array whose opening brace has been read
+	 * @param alternative Receives the transcript, "" if there is none, and the confidence, NaN if there is none
+	 */
+	private static void parseAlternative(JsonPullParser parser, Alternative alternative) throws IOException {
+		alternative.transcript = "";
+		alternative.confidence = Double.NaN;
+		while(parser.next() == Token.NAME){
+			if(parser.textEquals("transcript")){
+				Token value = parser.next();
+				if(value == Token.STRING){
+					alternative.transcript = parser.getText();
+				}
+				else{
+					skipRest(parser, value);
+				}
+			}
+			else if(parser.textEquals("confidence")){
+				Token value = parser.next();
+				if(value == Token.NUMBER){
+					alternative.confidence = parser.getDouble();
+				}
+				else{
+					skipRest(parser, value);
+				}
+			}
+			else{
+				parser.skipValue();
+			}
+		}
+	}
+
+	/**
+	 * Skips the rest of a value of an unexpected type whose first token has already been read
+	 */
+	private static void skipRest(JsonPullParser parser, Token first) throws IOException {
+		int depth = first == Token.BEGIN_OBJECT || first == Token.BEGIN_ARRAY ? 1 : 0;
+		while(depth > 0){
+			Token token = parser.next();
+			if(token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY){
+				depth++;
+			}
+			else if(token == Token.END_OBJECT || token == Token.END_ARRAY){
+				depth--;
+			}
+			else if(token == Token.END_DOCUMENT){
+				throw new IOException("Unexpected end of response");
+			}
+		}
+	}
+
+	private static void expect(JsonPullParser parser, Token expected) throws IOException {
+		Token token = parser.next();
+		if(token != expected){
+			throw new IOException("Expected " + expected + " in response but found " + token);
+		}
+	}
+
+	/**
+	 * Transcript and confidence of the alternative parsed last, reused for all alternatives of a response
+	 */
+	private static final class Alternative {
+		private String transcript;
+		private double confidence;
+	}
+
+}
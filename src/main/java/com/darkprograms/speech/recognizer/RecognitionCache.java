@@ -0,0 +1,261 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of recognition results, keyed by the SHA-256 of the audio together with the request parameters.
+ * <p>Give it to {@link Recognizer#setRecognitionCache(RecognitionCache)} to skip the FLAC encoding and the
+ * request to Google for audio that has been recognized before. The raw responses are kept, so every hit
+ * is parsed into a fresh GoogleResponse that the caller may modify.</p>
+ * <p>The most recently used entries are held in memory. If a directory is given, every response is also
+ * written there and survives restarts; the directory is never pruned, delete its files to empty it.</p>
+ */
+public class RecognitionCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Most recently used responses, in access order
+	 */
+	private final LinkedHashMap<String, String> memory;
+
+	/**
+	 * Directory of the disk tier, null if there is none
+	 */
+	private final File directory;
+
+	/**
+	 * Statistics
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor for a cache that is kept in memory only
+	 * @param maxEntries The maximum number of responses kept in memory
+	 */
+	public RecognitionCache(int maxEntries) {
+		this(maxEntries, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param maxEntries The maximum number of responses kept in memory
+	 * @param directory Directory to keep every response in as well, or null for none. Created if it does not exist.
+	 */
+	public RecognitionCache(final int maxEntries, File directory) {
+		this.memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		this.directory = directory;
+		if(directory != null){
+			directory.mkdirs();
+		}
+	}
+
+	/**
+	 * Looks up a response, first in memory and then on disk.
+	 * @param key The key from {@link #key(File, String)} or {@link #key(byte[], String)}
+	 * @return The raw response, or null if the audio has not been recognized with these parameters
+	 */
+	String get(String key) {
+		String response;
+		synchronized(memory){
+			response = memory.get(key);
+		}
+		if(response != null){
+			hits.incrementAndGet();
+			return response;
+		}
+		if(directory != null){
+			response = read(new File(directory, key));
+			if(response != null){
+				synchronized(memory){
+					memory.put(key, response);
+				}
+				diskHits.incrementAndGet();
+				return response;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stores a response. Failing to write the disk tier is not an error, the entry is then held in memory only.
+	 * @param key The key of the request
+	 * @param response The raw response
+	 */
+	void put(String key, String response) {
+		synchronized(memory){
+			memory.put(key, response);
+		}
+		if(directory != null){
+			write(new File(directory, key), response);
+		}
+	}
+
+	/**
+	 * Computes the key of a request for audio held in a file.
+	 * @param audio The file that is sent, or that is encoded and sent
+	 * @param parameters Everything besides the audio that influences the response
+	 * @return The key
+	 * @throws IOException If the file cannot be read
+	 */
+	static String key(File audio, String parameters) throws IOException {
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(audio);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while((read = in.read(buffer)) != -1){
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return finish(digest, parameters);
+	}
+
+	/**
+	 * Computes the key of a request for audio held in memory.
+	 * @param audio The data that is sent
+	 * @param parameters Everything besides the audio that influences the response
+	 * @return The key
+	 */
+	static String key(byte[] audio, String parameters) {
+		MessageDigest digest = newDigest();
+		digest.update(audio);
+		return finish(digest, parameters);
+	}
+
+	/**
+	 * Gets the number of lookups answered from memory
+	 * @return The memory hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups answered from the disk tier
+	 * @return The disk hit count
+	 */
+	public long getDiskHitCount() {
+		return diskHits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that had to be sent to Google
+	 * @return The miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of responses held in memory
+	 * @return The number of entries in memory
+	 */
+	public int size() {
+		synchronized(memory){
+			return memory.size();
+		}
+	}
+
+	/**
+	 * Empties the memory tier. The disk tier is left as it is.
+	 */
+	public void clear() {
+		synchronized(memory){
+			memory.clear();
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds the parameters to the digest and formats it as hex, which doubles as the file name on disk.
+	 */
+	private static String finish(MessageDigest digest, String parameters) {
+		digest.update((byte)0);
+		digest.update(parameters.getBytes(UTF8));
+		byte[] hash = digest.digest();
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for(byte b : hash){
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static String read(File file) {
+		if(!file.isFile()){
+			return null;
+		}
+		try {
+			Reader reader = new InputStreamReader(new FileInputStream(file), UTF8);
+			try {
+				StringBuilder sb = new StringBuilder((int)file.length());
+				char[] buffer = new char[4096];
+				int read;
+				while((read = reader.read(buffer)) != -1){
+					sb.append(buffer, 0, read);
+				}
+				return sb.toString();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes to a temporary file first, so a reader never sees a partly written entry.
+	 */
+	private static void write(File file, String response) {
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+			try {
+				writer.write(response);
+			} finally {
+				writer.close();
+			}
+			if(!temp.renameTo(file)){
+				temp.delete();
+			}
+		} catch (IOException e) {
+			temp.delete();
+		}
+	}
+
+}
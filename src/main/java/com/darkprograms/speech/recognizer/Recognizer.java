@@ -1,12 +1,28 @@
 package com.darkprograms.speech.recognizer;
 
-import java.util.*;
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.json.*;
+import net.sourceforge.javaflacencoder.StreamConfiguration;
+
+import com.darkprograms.speech.util.HttpStatusException;
+import com.darkprograms.speech.util.HttpTransport;
+import com.darkprograms.speech.util.PooledHttpTransport;
+import com.darkprograms.speech.util.RateLimiter;
+import com.darkprograms.speech.util.RetryPolicy;
 
 /***************************************************************
  * Class that submits FLAC audio and retrieves recognized text
@@ -118,6 +134,41 @@ public class Recognizer {
     // "http://www.google.com/speech-api/v2/recognize?lang=en-us&key=ADD_YOUR_KEY_HERE&output=json" 
     private static final String GOOGLE_RECOGNIZER_URL = "http://www.google.com/speech-api/v2/recognize?client=chromium&output=json";
 
+    /**
+     * Size of the buffer files are uploaded through
+     */
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Encoder used to convert wave files before they are sent. Borrows from the shared encoder pool.
+     */
+    private final FlacEncoder flacEncoder = createFlacEncoder();
+
+    /**
+     * Opens the connections to Google. Keeps them alive between requests by default.
+     */
+    private HttpTransport httpTransport = PooledHttpTransport.getDefault();
+
+    /**
+     * Runs the asynchronous requests
+     */
+    private Executor executor = DefaultExecutorHolder.EXECUTOR;
+
+    /**
+     * Cache of earlier responses, null if caching is off
+     */
+    private RecognitionCache recognitionCache = null;
+
+    /**
+     * Retries and hedges failed or slow requests, null to send every request once
+     */
+    private RetryPolicy retryPolicy = null;
+
+    /**
+     * Limits the requests sent, null to use the limiter registered for the API key
+     */
+    private RateLimiter rateLimiter = null;
+
     private boolean profanityFilter = true;
     private String language = null;
     private String apikey = null;
@@ -220,8 +271,117 @@ public class Recognizer {
         this.apikey = apikey;
     }
 
+    /**
+     * Gets the transport the requests are sent through
+     * @return The HttpTransport
+     */
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Sets the transport the requests are sent through, e.g. a PooledHttpTransport with its own
+     * timeouts and per host connection limit, or a stand-in for testing.
+     * @param httpTransport The HttpTransport to use
+     */
+    public void setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    /**
+     * Gets the executor the asynchronous requests run on
+     * @return The Executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor the asynchronous requests run on. Every request in flight occupies one of its
+     * threads while it waits on the network, so its size bounds the number of concurrent requests.
+     * By default a shared pool of daemon threads is used that grows as needed.
+     * @param executor The Executor to use
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the cache responses are looked up in
+     * @return The RecognitionCache, or null if caching is off
+     */
+    public RecognitionCache getRecognitionCache() {
+        return recognitionCache;
+    }
+
+    /**
+     * Sets the cache responses are looked up in before audio is encoded and sent to Google.
+     * A cache may be shared by several Recognizers.
+     * @param recognitionCache The RecognitionCache to use, or null to turn caching off (default)
+     */
+    public void setRecognitionCache(RecognitionCache recognitionCache) {
+        this.recognitionCache = recognitionCache;
+    }
+
+    /**
+     * Gets the policy failed and slow requests are retried and hedged with
+     * @return The RetryPolicy, or null if requests are only sent once
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy failed and slow requests are retried and hedged with. Transient failures such as
+     * connection resets and 5xx responses are then retried with backoff, and if the policy has a hedge
+     * percentile a second request is raced against any request that is slower than usual.
+     * A policy may be shared by several Recognizers.
+     * @param retryPolicy The RetryPolicy to use, or null to send every request once (default)
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Gets the limiter set on this Recognizer
+     * @return The RateLimiter, or null if the one registered for the API key is used
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets the limiter every request to Google, including retries and hedged requests, takes a token from.
+     * Results served from the recognition cache do not count.
+     * @param rateLimiter The RateLimiter to use, or null to use the one registered for the API key with
+     * {@link RateLimiter#setForApiKey(String, RateLimiter)}, if any (default)
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Creates the encoder for wave files, backed by the shared encoder pool
+     * @return The FlacEncoder
+     */
+    private static FlacEncoder createFlacEncoder() {
+        FlacEncoder flacEncoder = new FlacEncoder();
+        flacEncoder.setEncoderPool(FlacEncoderPool.getDefault());
+        return flacEncoder;
+    }
+
+    /**
+     * Gets the encoder used to convert wave files to FLAC before they are sent.
+     * Configure it to resample or down-mix, e.g. getFlacEncoder().setTargetSampleRate(16000)
+     * @return The FlacEncoder of this Recognizer
+     */
+    public FlacEncoder getFlacEncoder() {
+        return flacEncoder;
+    }
+
     /**
      * Get recognized data from a Wave file.  This method will encode the wave file to a FLAC file
+     * and send it with the sample rate of the wave file
      *
      * @param waveFile Wave file to recognize
      * @param maxResults Maximum number of results to return in response
@@ -229,15 +389,36 @@ public class Recognizer {
      * @throws IOException Throws exception if something goes wrong
      */
     public GoogleResponse getRecognizedDataForWave(File waveFile, int maxResults) throws IOException{
-        FlacEncoder flacEncoder = new FlacEncoder();
-        File flacFile = new File(waveFile + ".flac");
-
-        flacEncoder.convertWaveToFlac(waveFile, flacFile);
-        
-        GoogleResponse googleResponse = getRecognizedDataForFlac(flacFile, maxResults, 8000);
-        
-        //Delete converted FLAC data
-        flacFile.delete();
+        return getRecognizedDataForWave(waveFile, maxResults, null);
+    }
+
+    private GoogleResponse getRecognizedDataForWave(File waveFile, final int maxResults, RequestHandle handle) throws IOException{
+        GoogleResponse googleResponse = new GoogleResponse();
+        RecognitionCache cache = recognitionCache;
+        String cacheKey = null;
+        if(cache != null){
+            //Keyed on the wave file itself so that a hit skips the encoding as well
+            cacheKey = RecognitionCache.key(waveFile, cacheParameters(maxResults, "wave&rate="
+                    + flacEncoder.getTargetSampleRate() + "&downmix=" + flacEncoder.isDownmix()));
+            String cached = cache.get(cacheKey);
+            if(cached != null){
+                parseResponse(cached, googleResponse);
+                return googleResponse;
+            }
+        }
+
+        //Encodes in memory so no temporary FLAC file is written next to the wave file
+        ByteArrayOutputStream flacData = new ByteArrayOutputStream((int) Math.min(waveFile.length(), Integer.MAX_VALUE));
+
+        StreamConfiguration streamConfiguration = flacEncoder.convertWaveToFlac(waveFile, flacData);
+
+        final byte[] encoded = flacData.toByteArray();
+        final int sampleRate = streamConfiguration.getSampleRate();
+        StringBuilder raw = cache != null ? new StringBuilder() : null;
+        googleResponse = send((h, r) -> rawRequest(encoded, maxResults, sampleRate, h, r), handle, raw);
+        if(cache != null){
+            cache.put(cacheKey, raw.toString());
+        }
         return googleResponse;
     }
 
@@ -246,7 +427,6 @@ public class Recognizer {
      *
      * @param waveFile Wave file to recognize
      * @param maxResults the maximum number of results to return in the response
-     * NOTE: Sample rate of file must be 8000 unless a custom sample rate is specified.
      * @return Returns a GoogleResponse, with the response and confidence score
      * @throws IOException Throws exception if something goes wrong
      */
@@ -277,9 +457,61 @@ public class Recognizer {
      * @throws IOException if something goes wrong
      */
     public GoogleResponse getRecognizedDataForFlac(File flacFile, int maxResults, int sampleRate) throws IOException{
-        String [] response = rawRequest(flacFile, maxResults, sampleRate);
+        return getRecognizedDataForFlac(flacFile, maxResults, sampleRate, null);
+    }
+
+    private GoogleResponse getRecognizedDataForFlac(final File flacFile, final int maxResults, final int sampleRate,
+            RequestHandle handle) throws IOException{
+        GoogleResponse googleResponse = new GoogleResponse();
+        RecognitionCache cache = recognitionCache;
+        String cacheKey = null;
+        if(cache != null){
+            cacheKey = RecognitionCache.key(flacFile, cacheParameters(maxResults, "flac&rate=" + sampleRate));
+            String cached = cache.get(cacheKey);
+            if(cached != null){
+                parseResponse(cached, googleResponse);
+                return googleResponse;
+            }
+        }
+        StringBuilder raw = cache != null ? new StringBuilder() : null;
+        googleResponse = send((h, r) -> rawRequest(flacFile, maxResults, sampleRate, h, r), handle, raw);
+        if(cache != null){
+            cache.put(cacheKey, raw.toString());
+        }
+        return googleResponse;
+    }
+
+    /**
+     * Get recognized data from FLAC data held in memory.
+     *
+     * @param flacData FLAC encoded audio to recognize
+     * @param maxResults the maximum number of results to return in the response
+     * @param sampleRate The sampleRate of the data. Default is 8000.
+     * @return GoogleResponse with the response and confidence score
+     * @throws IOException if something goes wrong
+     */
+    public GoogleResponse getRecognizedDataForFlac(byte[] flacData, int maxResults, int sampleRate) throws IOException{
+        return getRecognizedDataForFlac(flacData, maxResults, sampleRate, null);
+    }
+
+    private GoogleResponse getRecognizedDataForFlac(final byte[] flacData, final int maxResults, final int sampleRate,
+            RequestHandle handle) throws IOException{
         GoogleResponse googleResponse = new GoogleResponse();
-        parseResponse(response, googleResponse);
+        RecognitionCache cache = recognitionCache;
+        String cacheKey = null;
+        if(cache != null){
+            cacheKey = RecognitionCache.key(flacData, cacheParameters(maxResults, "flac&rate=" + sampleRate));
+            String cached = cache.get(cacheKey);
+            if(cached != null){
+                parseResponse(cached, googleResponse);
+                return googleResponse;
+            }
+        }
+        StringBuilder raw = cache != null ? new StringBuilder() : null;
+        googleResponse = send((h, r) -> rawRequest(flacData, maxResults, sampleRate, h, r), handle, raw);
+        if(cache != null){
+            cache.put(cacheKey, raw.toString());
+        }
         return googleResponse;
     }
 
@@ -357,48 +589,427 @@ public class Recognizer {
     }
 
     /**
-     * Parses the raw response from Google
+     * Asynchronously gets recognized data from a Wave file. The file is encoded to FLAC and sent
+     * with its own sample rate on the executor of this Recognizer.
+     * Cancelling the returned future aborts the upload.
      *
-     * @param rawResponse The raw, unparsed response from Google
-     * @return Returns the parsed response in the form of a Google Response.
-     */
-    private void parseResponse(String[] rawResponse, GoogleResponse googleResponse) {
-
-        for(String s : rawResponse) {
-            JSONObject jsonResponse = new JSONObject(s);
-            JSONArray jsonResultArray = jsonResponse.getJSONArray("result");
-            for(int i = 0; i < jsonResultArray.length(); i++) {
-                JSONObject jsonAlternativeObject = jsonResultArray.getJSONObject(i);
-                JSONArray jsonAlternativeArray = jsonAlternativeObject.getJSONArray("alternative");
-                double prevConfidence = 0;
-                for(int j = 0; j < jsonAlternativeArray.length(); j++) {
-                    JSONObject jsonTranscriptObject = jsonAlternativeArray.getJSONObject(j);
-                    String transcript = jsonTranscriptObject.optString("transcript", "");
-                    double confidence = jsonTranscriptObject.optDouble("confidence", 0.0);
-                    if(confidence > prevConfidence) {
-                        googleResponse.setResponse(transcript);
-                        googleResponse.setConfidence(String.valueOf(confidence));
-                        prevConfidence = confidence;
-                    } else
-                        googleResponse.getOtherPossibleResponses().add(transcript);
+     * @param waveFile Wave file to recognize
+     * @param maxResults Maximum number of results to return in response
+     * @return A future completed with the GoogleResponse, or exceptionally if something goes wrong
+     */
+    public CompletableFuture<GoogleResponse> getRecognizedDataForWaveAsync(final File waveFile, final int maxResults) {
+        return submit(handle -> getRecognizedDataForWave(waveFile, maxResults, handle));
+    }
+
+    /**
+     * Asynchronously gets recognized data from a FLAC file on the executor of this Recognizer.
+     * Cancelling the returned future aborts the upload.
+     *
+     * @param flacFile FLAC file to recognize
+     * @param maxResults the maximum number of results to return in the response
+     * @param sampleRate The sampleRate of the file
+     * @return A future completed with the GoogleResponse, or exceptionally if something goes wrong
+     */
+    public CompletableFuture<GoogleResponse> getRecognizedDataForFlacAsync(final File flacFile, final int maxResults, final int sampleRate) {
+        return submit(handle -> getRecognizedDataForFlac(flacFile, maxResults, sampleRate, handle));
+    }
+
+    /**
+     * Asynchronously gets recognized data from FLAC data held in memory on the executor of this Recognizer.
+     * Cancelling the returned future aborts the upload.
+     *
+     * @param flacData FLAC encoded audio to recognize. Must not be modified until the future completes.
+     * @param maxResults the maximum number of results to return in the response
+     * @param sampleRate The sampleRate of the data
+     * @return A future completed with the GoogleResponse, or exceptionally if something goes wrong
+     */
+    public CompletableFuture<GoogleResponse> getRecognizedDataForFlacAsync(final byte[] flacData, final int maxResults, final int sampleRate) {
+        return submit(handle -> getRecognizedDataForFlac(flacData, maxResults, sampleRate, handle));
+    }
+
+    /**
+     * Runs a request on the executor. The request is skipped if the future is cancelled before it starts,
+     * and its connection is dropped if the future is cancelled while it runs.
+     *
+     * @param request The request to run
+     * @return The future of the request
+     */
+    private CompletableFuture<GoogleResponse> submit(final AsyncRequest request) {
+        final RequestHandle handle = new RequestHandle();
+        final CompletableFuture<GoogleResponse> future = new CompletableFuture<GoogleResponse>();
+        future.whenComplete((response, failure) -> {
+            if(future.isCancelled()){
+                handle.abort();
+            }
+        });
+        try {
+            executor.execute(() -> {
+                if(future.isDone()){
+                    return;
                 }
+                try {
+                    future.complete(request.run(handle));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            //Rejected by the executor
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * A request run by {@link #submit(AsyncRequest)}
+     */
+    private interface AsyncRequest {
+        GoogleResponse run(RequestHandle handle) throws IOException;
+    }
+
+    /**
+     * Sends a request, retrying and hedging it as the retry policy allows.
+     *
+     * @param upload Sends the request once
+     * @param handle Handle to abort the request with, or null
+     * @param raw Receives the raw response of the attempt that succeeded, or null
+     * @return The parsed response
+     * @throws IOException The failure of the last attempt
+     */
+    private GoogleResponse send(Upload upload, RequestHandle handle, StringBuilder raw) throws IOException {
+        RetryPolicy policy = retryPolicy;
+        if(policy == null){
+            return upload.send(handle, raw);
+        }
+        for(int attempt = 1; ; attempt++){
+            //Each attempt records on its own, so a failed attempt leaves nothing behind
+            StringBuilder attemptRaw = raw != null ? new StringBuilder() : null;
+            long start = System.nanoTime();
+            try {
+                long hedgeDelay = policy.getHedgeDelayMillis();
+                GoogleResponse googleResponse = hedgeDelay >= 0
+                        ? sendHedged(upload, handle, attemptRaw, hedgeDelay)
+                        : upload.send(handle, attemptRaw);
+                policy.recordLatency((System.nanoTime() - start) / 1000000);
+                if(raw != null){
+                    raw.append(attemptRaw);
+                }
+                return googleResponse;
+            } catch (IOException e) {
+                if(attempt >= policy.getMaxAttempts() || !policy.isRetryable(e)
+                        || (handle != null && handle.isAborted())){
+                    throw e;
+                }
+                policy.backoff(attempt);
+            }
+        }
+    }
+
+    /**
+     * Sends a request and, if it has not answered within the delay, an identical second one. The first
+     * response wins and the other request is aborted. Both run on the shared executor, which is never full,
+     * so hedging cannot starve a bounded executor of this Recognizer.
+     *
+     * @param upload Sends the request once
+     * @param handle Handle to abort both requests with, or null
+     * @param raw Receives the raw response of the request that won, or null
+     * @param delayMillis Time to wait for the first request before sending the second
+     * @return The parsed response
+     * @throws IOException The failure of the last request to fail
+     */
+    private GoogleResponse sendHedged(final Upload upload, RequestHandle handle, StringBuilder raw, long delayMillis)
+            throws IOException {
+        final BlockingQueue<HedgedAttempt> finished = new LinkedBlockingQueue<HedgedAttempt>();
+        HedgedAttempt[] attempts = new HedgedAttempt[2];
+        attempts[0] = new HedgedAttempt(handle, raw != null);
+        attempts[0].start(upload, finished);
+        int running = 1;
+        try {
+            HedgedAttempt done = finished.poll(delayMillis, TimeUnit.MILLISECONDS);
+            if(done == null){
+                attempts[1] = new HedgedAttempt(handle, raw != null);
+                attempts[1].start(upload, finished);
+                running++;
+                done = finished.take();
+            }
+            while(true){
+                running--;
+                if(done.failure == null){
+                    for(HedgedAttempt attempt : attempts){
+                        if(attempt != null && attempt != done){
+                            attempt.handle.abort();
+                        }
+                    }
+                    if(raw != null){
+                        raw.append(done.raw);
+                    }
+                    return done.response;
+                }
+                if(running == 0){
+                    throw done.failure;
+                }
+                done = finished.take();
+            }
+        } catch (InterruptedException e) {
+            for(HedgedAttempt attempt : attempts){
+                if(attempt != null){
+                    attempt.handle.abort();
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+    }
+
+    /**
+     * Sends a request once, parsing the response into a new GoogleResponse
+     */
+    private interface Upload {
+        GoogleResponse send(RequestHandle handle, StringBuilder raw) throws IOException;
+    }
+
+    /**
+     * One of the racing requests of {@link #sendHedged(Upload, RequestHandle, StringBuilder, long)}
+     */
+    private static final class HedgedAttempt {
+
+        private final RequestHandle handle;
+        private final StringBuilder raw;
+        private GoogleResponse response;
+        private IOException failure;
+
+        HedgedAttempt(RequestHandle parent, boolean keepRaw) {
+            this.handle = new RequestHandle(parent);
+            this.raw = keepRaw ? new StringBuilder() : null;
+        }
+
+        /**
+         * Sends the request on the shared executor and queues this attempt once it has finished
+         */
+        void start(final Upload upload, final BlockingQueue<HedgedAttempt> finished) {
+            DefaultExecutorHolder.EXECUTOR.execute(() -> {
+                try {
+                    response = upload.send(handle, raw);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException(e);
+                }
+                finished.add(this);
+            });
+        }
+    }
+
+    /**
+     * Lets another thread abort a request by disconnecting the connections it is using.
+     * A handle may have a parent, which then aborts the connections of the child as well.
+     */
+    private static final class RequestHandle {
+
+        private final RequestHandle parent;
+        private final List<HttpURLConnection> connections = new ArrayList<HttpURLConnection>(2);
+        private boolean aborted = false;
+
+        RequestHandle() {
+            this(null);
+        }
+
+        RequestHandle(RequestHandle parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * Registers a connection of the request
+         * @param connection The connection that was opened
+         * @throws IOException If the request has already been aborted
+         */
+        synchronized void attach(HttpURLConnection connection) throws IOException {
+            if(aborted){
+                throw new InterruptedIOException("Request cancelled");
+            }
+            if(parent != null){
+                parent.attach(connection);
+            }
+            connections.add(connection);
+        }
+
+        /**
+         * Forgets a connection once it has been handed back to the transport, so that a late abort
+         * cannot disconnect a socket that is reused by another request.
+         * @param connection The connection to forget
+         */
+        synchronized void detach(HttpURLConnection connection) {
+            connections.remove(connection);
+            if(parent != null){
+                parent.detach(connection);
+            }
+        }
+
+        /**
+         * Aborts the request, disconnecting its connections
+         */
+        synchronized void abort() {
+            aborted = true;
+            for(HttpURLConnection connection : connections){
+                connection.disconnect();
             }
+            connections.clear();
+        }
+
+        /**
+         * Returns true if this request or its parent has been aborted
+         * @return True if aborted
+         */
+        synchronized boolean isAborted() {
+            return aborted || (parent != null && parent.isAborted());
         }
     }
 
+    /**
+     * Lazily creates the executor shared by all Recognizers that do not have their own
+     */
+    private static final class DefaultExecutorHolder {
+        private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Recognizer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Describes the request parameters that influence the response, for the cache key
+     *
+     * @param maxResults Maximum number of results to return in response
+     * @param audio Describes how the audio is sent
+     * @return The parameters
+     */
+    private String cacheParameters(int maxResults, String audio) {
+        return "lang=" + language + "&pfilter=" + profanityFilter + "&maxresults=" + maxResults + "&" + audio;
+    }
+
+    /**
+     * Parses the raw response from Google
+     *
+     * @param rawResponse The raw, unparsed response from Google
+     * @param googleResponse The GoogleResponse to fill in
+     * @throws IOException If the response is not valid JSON
+     */
+    private void parseResponse(String rawResponse, GoogleResponse googleResponse) throws IOException {
+        GoogleResponseParser.parse(new StringReader(rawResponse), googleResponse);
+    }
+
     /**
      * Performs the request to Google with a file <br>
-     * Request is buffered
+     * The file is streamed to the connection
      *
      * @param inputFile Input files to recognize
-     * @return Returns the raw, unparsed response from Google
+     * @param handle Handle to abort the request with, or null
+     * @param raw Receives the raw, unparsed response from Google, or null
+     * @return Returns the parsed response
+     * @throws IOException Throws exception if something went wrong
+     */
+    private GoogleResponse rawRequest(File inputFile, int maxResults, int sampleRate, RequestHandle handle,
+            StringBuilder raw) throws IOException{
+        HttpURLConnection urlConn = openConnection(maxResults, sampleRate);
+        boolean reusable = false;
+        try {
+            if(handle != null){
+                handle.attach(urlConn);
+            }
+
+            //The size is known, so the body is streamed instead of being buffered in memory by the JDK
+            urlConn.setFixedLengthStreamingMode(inputFile.length());
+
+            // Send POST output.
+            OutputStream outputStream = urlConn.getOutputStream();
+
+            FileInputStream fileInputStream = new FileInputStream(inputFile);
+            try {
+                byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+                int read;
+                while ((read = fileInputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+            } finally {
+                fileInputStream.close();
+            }
+            outputStream.close();
+
+            GoogleResponse googleResponse = readResponse(urlConn, raw);
+            reusable = true;
+            return googleResponse;
+        } catch (HttpStatusException e) {
+            //The error body is drained on release, so the socket can still be reused
+            reusable = true;
+            throw e;
+        } finally {
+            if(handle != null){
+                handle.detach(urlConn);
+            }
+            httpTransport.releaseConnection(urlConn, reusable);
+        }
+    }
+
+    /**
+     * Performs the request to Google with FLAC data held in memory
+     *
+     * @param flacData FLAC data to recognize
+     * @param handle Handle to abort the request with, or null
+     * @param raw Receives the raw, unparsed response from Google, or null
+     * @return Returns the parsed response
      * @throws IOException Throws exception if something went wrong
      */
-    private String[] rawRequest(File inputFile, int maxResults, int sampleRate) throws IOException{
+    private GoogleResponse rawRequest(byte[] flacData, int maxResults, int sampleRate, RequestHandle handle,
+            StringBuilder raw) throws IOException{
+        HttpURLConnection urlConn = openConnection(maxResults, sampleRate);
+        boolean reusable = false;
+        try {
+            if(handle != null){
+                handle.attach(urlConn);
+            }
+            //Streams the upload instead of buffering it until the response is requested, so it can be aborted
+            urlConn.setFixedLengthStreamingMode(flacData.length);
+
+            // Send POST output.
+            OutputStream outputStream = urlConn.getOutputStream();
+            outputStream.write(flacData);
+            outputStream.close();
+
+            GoogleResponse googleResponse = readResponse(urlConn, raw);
+            reusable = true;
+            return googleResponse;
+        } catch (HttpStatusException e) {
+            //The error body is drained on release, so the socket can still be reused
+            reusable = true;
+            throw e;
+        } finally {
+            if(handle != null){
+                handle.detach(urlConn);
+            }
+            httpTransport.releaseConnection(urlConn, reusable);
+        }
+    }
+
+    /**
+     * Opens the connection to Google and sets the request headers
+     *
+     * @param maxResults Maximum number of results to return in response
+     * @param sampleRate The sample rate of the uploaded audio
+     * @return The connection, ready for the audio to be written. Must be released to the transport.
+     * @throws IOException Throws exception if something went wrong
+     */
+    private HttpURLConnection openConnection(int maxResults, int sampleRate) throws IOException{
+        RateLimiter limiter = rateLimiter != null ? rateLimiter : RateLimiter.forApiKey(apikey);
+        if(limiter != null){
+            limiter.acquire();
+        }
+
         URL url;
-        URLConnection urlConn;
-        OutputStream outputStream;
-        BufferedReader br;
+        HttpURLConnection urlConn;
 
         StringBuilder sb = new StringBuilder(GOOGLE_RECOGNIZER_URL);
         if( language != null ) {
@@ -423,8 +1034,8 @@ public class Recognizer {
         url = new URL(sb.toString());
         // System.out.println("Recognizer.rawRequest(): url=" + url);
 
-        // Open New URL connection channel.
-        urlConn = url.openConnection();
+        // Open New URL connection channel, reusing a kept-alive socket where possible.
+        urlConn = httpTransport.openConnection(url);
 
         // we want to do output.
         urlConn.setDoOutput(true);
@@ -436,34 +1047,66 @@ public class Recognizer {
         urlConn.setRequestProperty("Content-Type", "audio/x-flac; rate=" + sampleRate);
         urlConn.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) "
         		+ "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/28.0.1500.52 Safari/537.36");
+        return urlConn;
+    }
 
-        // Send POST output.
-        outputStream = urlConn.getOutputStream();
-
-        FileInputStream fileInputStream = new FileInputStream(inputFile);
-
-        byte[] buffer = new byte[256];
+    /**
+     * Parses the response of a request that has been sent straight from the connection
+     *
+     * @param urlConn The connection the audio was written to
+     * @param raw Receives the raw, unparsed response, e.g. to cache it, or null
+     * @return Returns the parsed response
+     * @throws IOException Throws exception if something went wrong
+     * @throws HttpStatusException If Google answered with an error status
+     */
+    private GoogleResponse readResponse(HttpURLConnection urlConn, StringBuilder raw) throws IOException{
+        int status = urlConn.getResponseCode();
+        if(status >= HttpURLConnection.HTTP_BAD_REQUEST){
+            throw new HttpStatusException(status, "Recognition request failed");
+        }
 
-        while ((fileInputStream.read(buffer, 0, 256)) != -1) {
-            outputStream.write(buffer, 0, 256);
+        // Get response data.
+        Reader reader = new InputStreamReader(urlConn.getInputStream(), Charset.forName("UTF-8"));
+        if(raw != null){
+            reader = new RecordingReader(reader, raw);
         }
+        GoogleResponse googleResponse = new GoogleResponse();
+        try {
+            GoogleResponseParser.parse(reader, googleResponse);
+        } finally {
+            reader.close();
+        }
+        return googleResponse;
+    }
 
-        fileInputStream.close();
-        outputStream.close();
+    /**
+     * Reader that keeps a copy of everything read through it
+     */
+    private static final class RecordingReader extends FilterReader {
 
-        // Get response data.
-        br = new BufferedReader(new InputStreamReader(urlConn.getInputStream(), Charset.forName("UTF-8")));
+        private final StringBuilder record;
 
-        List<String> completeResponse = new ArrayList<String>();
-        String response = br.readLine();
-        while(response != null) {
-            completeResponse.add(response);
-            response = br.readLine();
+        RecordingReader(Reader in, StringBuilder record) {
+            super(in);
+            this.record = record;
         }
 
-        br.close();
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if(c != -1){
+                record.append((char) c);
+            }
+            return c;
+        }
 
-        // System.out.println("Recognizer.rawRequest() -> completeResponse = " + completeResponse);
-        return completeResponse.toArray(new String[completeResponse.size()]);
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int read = super.read(cbuf, off, len);
+            if(read > 0){
+                record.append(cbuf, off, read);
+            }
+            return read;
+        }
     }
 }
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -14,13 +15,14 @@ import java.net.URLConnection;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.xml.ws.http.HTTPException;
 
-import com.darkprograms.speech.util.StringUtil;
+import com.darkprograms.speech.util.HttpStatusException;
+import com.darkprograms.speech.util.JsonPullParser;
+import com.darkprograms.speech.util.RateLimiter;
+import com.darkprograms.speech.util.RetryPolicy;
 
 /**
  * This class uses Google's V2 Hook. The class is returns a chunked respones so listeners must be used.
@@ -47,9 +49,19 @@ public class RecognizerChunked {
 	private String language;
 	
 	/**
-	 * Stores the Response Listeners
+	 * Stores the Response Listeners and delivers the responses to them
 	 */
-	private List<GSpeechResponseListener> responseListeners = new ArrayList<GSpeechResponseListener>();
+	private final ResponseDispatcher responseDispatcher = new ResponseDispatcher();
+
+	/**
+	 * Retries failed requests, null to send every request once
+	 */
+	private RetryPolicy retryPolicy = null;
+
+	/**
+	 * Limits the requests sent, null to use the limiter registered for the API key
+	 */
+	private RateLimiter rateLimiter = null;
 	
 	/**
 	 * Constructor
@@ -92,6 +104,31 @@ public class RecognizerChunked {
 		this.language = language;
 	}
 	
+	public RetryPolicy getRetryPolicy(){
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets the policy failed requests are retried with. A request is only retried if Google has not sent
+	 * a response for it yet, so listeners never receive the same response twice.
+	 * @param retryPolicy The RetryPolicy to use, or null to send every request once (default)
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy){
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RateLimiter getRateLimiter(){
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the limiter every request, including retries, takes a token from.
+	 * @param rateLimiter The RateLimiter to use, or null to use the one registered for the API key, if any (default)
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter){
+		this.rateLimiter = rateLimiter;
+	}
+
 	/**
 	 * Analyzes the file for speech
 	 * @param infile The file you want to analyze for speech.
@@ -138,63 +175,101 @@ public class RecognizerChunked {
 	private void openHttpsPostConnection(final String urlStr, final byte[] data, final int sampleRate) {
 		new Thread () {
 			public void run() {
-				HttpsURLConnection httpConn = null;
-				ByteBuffer buff = ByteBuffer.wrap(data);
-				byte[] destdata = new byte[2048];
-				int resCode = -1;
-				OutputStream out = null;
-				try {
-					URL url = new URL(urlStr);
-					URLConnection urlConn = url.openConnection();
-					if (!(urlConn instanceof HttpsURLConnection)) {
-						throw new IOException ("URL must be HTTPS");
-					}
-					httpConn = (HttpsURLConnection)urlConn;
-					httpConn.setAllowUserInteraction(false);
-					httpConn.setInstanceFollowRedirects(true);
-					httpConn.setRequestMethod("POST");
-					httpConn.setDoOutput(true);
-					httpConn.setChunkedStreamingMode(0); //TransferType: chunked
-					httpConn.setRequestProperty("Content-Type", "audio/x-flac; rate=" + sampleRate);
-					// this opens a connection, then sends POST & headers.
-					out = httpConn.getOutputStream();
-					//beyond 15 sec duration just simply writing the file
-					// does not seem to work. So buffer it and delay to simulate
-					// bufferd microphone delivering stream of speech
-					// re: net.http.ChunkedOutputStream.java
-					while(buff.remaining() >= destdata.length){
-						buff.get(destdata);
-						out.write(destdata);
-					};
-					byte[] lastr = new byte[buff.remaining()];
-					buff.get(lastr, 0, lastr.length);
-					out.write(lastr);
-					out.close();
-					resCode = httpConn.getResponseCode();
-					if(resCode >= HttpURLConnection.HTTP_UNAUTHORIZED){//Stops here if Google doesn't like us/
-						throw new HTTPException(HttpURLConnection.HTTP_UNAUTHORIZED);//Throws
-					}
-					String line;//Each line that is read back from Google.
-					BufferedReader br =	new BufferedReader(new InputStreamReader(httpConn.getInputStream()));
-					while ((line = br.readLine( )) != null) {
-						if(line.length()>19 && resCode > 100 && resCode < HttpURLConnection.HTTP_UNAUTHORIZED){
-							GoogleResponse gr = new GoogleResponse();
-							parseResponse(line, gr);
-							fireResponseEvent(gr);
+				RetryPolicy policy = retryPolicy;
+				AtomicBoolean responded = new AtomicBoolean(false);
+				for(int attempt = 1; ; attempt++){
+					try {
+						post(urlStr, data, sampleRate, responded);
+						return;
+					} catch (IOException e) {
+						if(policy == null || attempt >= policy.getMaxAttempts() || !policy.isRetryable(e)
+								|| responded.get()){
+							e.printStackTrace();
+							return;
+						}
+						try {
+							policy.backoff(attempt);
+						} catch (IOException interrupted) {
+							e.printStackTrace();
+							return;
 						}
 					}
-				} catch (MalformedURLException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
 				}
-				finally {
-					if(httpConn != null) {
-						httpConn.disconnect();
+			}
+		}.start();
+	}
+
+	/**
+	 * Posts the data once and fires an event for every response Google sends back
+	 * @param urlStr The URL string to connect for chunking
+	 * @param data The data you want to send to Google.
+	 * @param sampleRate The sample rate for your audio file.
+	 * @param responded Set once the first response has been fired
+	 * @throws IOException If the request failed
+	 */
+	private void post(String urlStr, byte[] data, int sampleRate, AtomicBoolean responded) throws IOException {
+		HttpsURLConnection httpConn = null;
+		ByteBuffer buff = ByteBuffer.wrap(data);
+		byte[] destdata = new byte[2048];
+		int resCode = -1;
+		OutputStream out = null;
+		RateLimiter limiter = rateLimiter != null ? rateLimiter : RateLimiter.forApiKey(API_KEY);
+		if(limiter != null){
+			limiter.acquire();
+		}
+		try {
+			URL url = new URL(urlStr);
+			URLConnection urlConn = url.openConnection();
+			if (!(urlConn instanceof HttpsURLConnection)) {
+				throw new MalformedURLException("URL must be HTTPS");
+			}
+			httpConn = (HttpsURLConnection)urlConn;
+			httpConn.setAllowUserInteraction(false);
+			httpConn.setInstanceFollowRedirects(true);
+			httpConn.setRequestMethod("POST");
+			httpConn.setDoOutput(true);
+			httpConn.setChunkedStreamingMode(0); //TransferType: chunked
+			httpConn.setRequestProperty("Content-Type", "audio/x-flac; rate=" + sampleRate);
+			// this opens a connection, then sends POST & headers.
+			out = httpConn.getOutputStream();
+			//beyond 15 sec duration just simply writing the file
+			// does not seem to work. So buffer it and delay to simulate
+			// bufferd microphone delivering stream of speech
+			// re: net.http.ChunkedOutputStream.java
+			while(buff.remaining() >= destdata.length){
+				buff.get(destdata);
+				out.write(destdata);
+			};
+			byte[] lastr = new byte[buff.remaining()];
+			buff.get(lastr, 0, lastr.length);
+			out.write(lastr);
+			out.close();
+			resCode = httpConn.getResponseCode();
+			if(resCode >= HttpURLConnection.HTTP_UNAUTHORIZED){//Stops here if Google doesn't like us/
+				throw new HttpStatusException(resCode, "Recognition request failed");//Throws
+			}
+			String line;//Each line that is read back from Google.
+			BufferedReader br =	new BufferedReader(new InputStreamReader(httpConn.getInputStream()));
+			JsonPullParser parser = new JsonPullParser();
+			while ((line = br.readLine( )) != null) {
+				if(line.length()>19 && resCode > 100 && resCode < HttpURLConnection.HTTP_UNAUTHORIZED){
+					GoogleResponse gr = new GoogleResponse();
+					parseResponse(parser, line, gr);
+					responded.set(true);
+					try {
+						responseDispatcher.dispatch(gr);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while queueing a response");
 					}
 				}
 			}
-		}.start();
+		}
+		finally {
+			if(httpConn != null) {
+				httpConn.disconnect();
+			}
+		}
 	}
 	
 	/**
@@ -220,67 +295,44 @@ public class RecognizerChunked {
 
 	/**
 	 * Parses the response into a Google Response
+	 * @param parser The parser of the request, reused for every line
 	 * @param rawResponse The raw String you want to parse
 	 * @param gr The GoogleResponse you want to parse into ti.
 	 */
-	private void parseResponse(String rawResponse, GoogleResponse gr){
-		if(rawResponse == null || !rawResponse.contains("\"result\"")){ return; }
-		if(rawResponse.contains("\"confidence\":")){
-			String confidence = StringUtil.substringBetween(rawResponse, "\"confidence\":", "}");
-			gr.setConfidence(confidence);
-		}
-		else{
-			gr.setConfidence(String.valueOf(1d));
-		}
-		String array = StringUtil.trimString(rawResponse, "[", "]");
-		if(array.contains("[")){
-			array = StringUtil.trimString(array, "[", "]");
-		}
-		String[] parts = array.split(",");
-		gr.setResponse(parseTranscript(parts[0]));
-		for(int i = 1; i<parts.length; i++){
-			gr.getOtherPossibleResponses().add(parseTranscript(parts[i]));
+	private void parseResponse(JsonPullParser parser, String rawResponse, GoogleResponse gr){
+		try {
+			GoogleResponseParser.parseLine(parser, rawResponse, gr);
+		} catch (IOException e) {
+			//Not JSON; whatever could be read is kept
 		}
-	}
-	
-	/**
-	 * Cleans up the transcript portion of the String
-	 * @param s The string you want to process.
-	 * @return The reformated string.
-	 */
-	private String parseTranscript(String s){
-		String tmp = s.substring(s.indexOf(":")+1);
-		if(s.endsWith("}")){
-			tmp = tmp.substring(0, tmp.length()-1);
-		}
-		tmp = StringUtil.stripQuotes(tmp);
-		return tmp;
+		//Interim results are not requested, so every response is final
+		gr.setFinalResponse(true);
 	}
 
 	/**
-	 * Adds responseListener that triggers when a response from Google is recieved
+	 * Adds responseListener that triggers when a response from Google is recieved.
+	 * Listeners are called one response at a time on a daemon thread, not on the thread reading from Google.
 	 * @param rl The response listener you want to add
 	 */
-	public synchronized void addResponseListener(GSpeechResponseListener rl){
-		responseListeners.add(rl);
+	public void addResponseListener(GSpeechResponseListener rl){
+		responseDispatcher.addResponseListener(rl);
 	}
 
 	/**
 	 * Removes the specified response listener
 	 * @param rl The response listener
 	 */
-	public synchronized void removeResponseListener(GSpeechResponseListener rl){
-		responseListeners.remove(rl);
+	public void removeResponseListener(GSpeechResponseListener rl){
+		responseDispatcher.removeResponseListener(rl);
 	}
-	
+
 	/**
-	 * Fires the response listener
-	 * @param gr The GoogleResponse as the event object.
+	 * Gets the dispatcher that delivers the responses to the listeners, e.g. to choose what happens
+	 * when listeners cannot keep up
+	 * @return The ResponseDispatcher
 	 */
-	private synchronized void fireResponseEvent(GoogleResponse gr){
-		for(GSpeechResponseListener gl: responseListeners){
-			gl.onResponse(gr);
-		}
+	public ResponseDispatcher getResponseDispatcher(){
+		return responseDispatcher;
 	}
 	
 }
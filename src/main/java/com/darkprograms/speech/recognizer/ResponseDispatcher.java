@@ -0,0 +1,728 @@
+package com.darkprograms.speech.recognizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers responses to {@link GSpeechResponseListener}s away from the thread that reads them.
+ * <p>Responses are queued per target, the recognition they belong to, and handed to the listeners one after
+ * the other, in the order they were received, by a task on an executor. Each target has its own bounded
+ * queue and its own task, so the targets are delivered to independently of each other: a slow listener of
+ * one recognition only holds up the responses of that recognition, and never the reading from Google.
+ * The listeners of the dispatcher itself may therefore be called for several targets at once.
+ * Adding and removing listeners never waits for a delivery.</p>
+ * <p>When the listeners of a target fall so far behind that its queue is full, the {@link OverflowPolicy}
+ * decides what happens to the next response of the target. Final responses are never dropped.</p>
+ * <p>Interim responses can also be thinned out before they are queued: with an interim window set, at most
+ * one interim response per target is passed on per window, the latest one, while final responses are
+ * passed on right away and make any interim response still held back obsolete.</p>
+ */
+public class ResponseDispatcher {
+
+	/**
+	 * What to do with a response when the queue of its target is full
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Waits until the listeners have made room, so every response is delivered
+		 */
+		BLOCK,
+		/**
+		 * Drops the new response if it is interim. A final response takes the place of the oldest
+		 * interim response queued, and waits if there is none.
+		 */
+		DROP_INTERIM,
+		/**
+		 * Replaces the newest interim response queued, which is outdated by the new one. Waits if
+		 * the newest response queued is final.
+		 */
+		COALESCE
+	}
+
+	/**
+	 * Default number of responses queued per target
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Key of the responses dispatched without a target
+	 */
+	private static final GSpeechResponseListener NO_TARGET = new GSpeechResponseListener() {
+		public void onResponse(GoogleResponse gr) {
+		}
+	};
+
+	private final List<GSpeechResponseListener> responseListeners = new CopyOnWriteArrayList<GSpeechResponseListener>();
+	private volatile Executor executor;
+
+	private volatile int capacity = DEFAULT_CAPACITY;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+	private volatile long interimWindowNanos = 0;
+
+	/**
+	 * Queue of each target, guarded by itself. A channel is locked after this map, never before.
+	 */
+	private final Map<GSpeechResponseListener, Channel> channels = new HashMap<GSpeechResponseListener, Channel>();
+
+	/**
+	 * Statistics
+	 */
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Constructor for a dispatcher delivering on a shared pool of daemon threads, one per processor
+	 */
+	public ResponseDispatcher() {
+		this(null);
+	}
+
+	/**
+	 * Constructor
+	 * @param executor The executor to deliver on, or null for a shared pool of daemon threads. At most one
+	 * task per target runs on it at a time.
+	 */
+	public ResponseDispatcher(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates a pool of daemon threads to deliver on, e.g. for a dispatcher whose listeners are slow or
+	 * that serves many recognitions at once. Its threads end once idle, so it need not be shut down.
+	 * @param threads The most responses delivered at once, at least 1
+	 * @return The executor
+	 * @see #setExecutor(Executor)
+	 */
+	public static ExecutorService newExecutor(int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ResponseDispatcher-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Gets the executor the responses are delivered on
+	 * @return The executor, or null if the shared pool is used
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor the responses are delivered on. At most one task per target runs on it at a time,
+	 * so the number of its threads bounds how many targets are delivered to at once.
+	 * @param executor The executor, or null for the shared pool of daemon threads (default)
+	 * @see #newExecutor(int)
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Adds a listener
+	 * @param rl The response listener you want to add
+	 */
+	public void addResponseListener(GSpeechResponseListener rl) {
+		responseListeners.add(rl);
+	}
+
+	/**
+	 * Removes a listener. Responses already being delivered may still reach it.
+	 * @param rl The response listener
+	 */
+	public void removeResponseListener(GSpeechResponseListener rl) {
+		responseListeners.remove(rl);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the number of responses of one target that may wait for delivery
+	 * @param capacity The queue size, at least 1, {@link #DEFAULT_CAPACITY} by default
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets what happens to a response when the queue of its target is full
+	 * @param overflowPolicy The OverflowPolicy, COALESCE by default
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if(overflowPolicy == null){
+			throw new IllegalArgumentException("overflowPolicy must not be null");
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Gets the shortest time between two interim responses of one target
+	 * @return The window in milliseconds, 0 if every interim response is passed on
+	 */
+	public long getInterimWindowMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(interimWindowNanos);
+	}
+
+	/**
+	 * Sets the shortest time between two interim responses of one target. An interim response that
+	 * arrives sooner is held back until the window has passed and is replaced by any newer one meanwhile.
+	 * @param interimWindowMillis The window in milliseconds, 0 to pass on every interim response (default)
+	 */
+	public void setInterimWindowMillis(long interimWindowMillis) {
+		this.interimWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, interimWindowMillis));
+	}
+
+	/**
+	 * Queues a response for the listeners
+	 * @param gr The response
+	 * @throws InterruptedException If interrupted while waiting for room in the queue
+	 */
+	public void dispatch(GoogleResponse gr) throws InterruptedException {
+		dispatch(gr, null);
+	}
+
+	/**
+	 * Queues a response for the listeners and then for a listener of the recognition it belongs to
+	 * @param gr The response
+	 * @param target Receives the response after the listeners of the dispatcher, may be null. Responses are
+	 * queued, coalesced and delivered in order per target.
+	 * @throws InterruptedException If interrupted while waiting for room in the queue
+	 */
+	public void dispatch(GoogleResponse gr, GSpeechResponseListener target) throws InterruptedException {
+		while(true){
+			Channel channel = channel(target);
+			boolean start;
+			synchronized(channel){
+				if(channel.removed){
+					//Purged since it was looked up
+					continue;
+				}
+				start = !hold(channel, gr) && enqueue(channel, gr);
+			}
+			if(start){
+				startDrain(channel);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Waits until every response dispatched to the target before the call has been delivered or dropped.
+	 * An interim response held back is queued right away. Other targets are not waited for.
+	 * @param target The target, may be null for the responses dispatched without one
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void flush(GSpeechResponseListener target) throws InterruptedException {
+		Channel channel;
+		synchronized(channels){
+			channel = channels.get(target != null ? target : NO_TARGET);
+		}
+		if(channel != null){
+			flush(channel);
+		}
+	}
+
+	/**
+	 * Waits until every response dispatched before the call has been delivered or dropped, for all targets.
+	 * Interim responses held back are queued right away.
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void flush() throws InterruptedException {
+		List<Channel> all;
+		synchronized(channels){
+			all = new ArrayList<Channel>(channels.values());
+		}
+		for(Channel channel : all){
+			flush(channel);
+		}
+	}
+
+	/**
+	 * Runs a task once every response dispatched to the target before the call has been delivered or
+	 * dropped, without waiting for it. An interim response held back is queued right away, even if the
+	 * queue is full. The task runs on the thread that delivered the last response, or on the calling
+	 * thread if there is nothing left to deliver.
+	 * @param target The target, may be null for the responses dispatched without one
+	 * @param task The task, e.g. to mark a recognition as complete
+	 */
+	public void whenDelivered(GSpeechResponseListener target, Runnable task) {
+		Channel channel;
+		synchronized(channels){
+			channel = channels.get(target != null ? target : NO_TARGET);
+		}
+		if(channel != null){
+			boolean start = false;
+			synchronized(channel){
+				if(channel.held != null){
+					start = add(channel, takeHeld(channel));
+				}
+				if(channel.taken < channel.queued){
+					channel.completions.addLast(new Completion(channel.queued, task));
+					task = null;
+				}
+			}
+			if(start){
+				startDrain(channel);
+			}
+		}
+		if(task != null){
+			complete(task);
+		}
+	}
+
+	private void flush(Channel channel) throws InterruptedException {
+		boolean start = false;
+		synchronized(channel){
+			if(channel.held != null){
+				start = enqueue(channel, takeHeld(channel));
+			}
+		}
+		if(start){
+			startDrain(channel);
+		}
+		synchronized(channel){
+			long mark = channel.queued;
+			while(channel.taken < mark){
+				channel.wait();
+			}
+		}
+	}
+
+	/**
+	 * Gets the channel of a target, creating it if needed
+	 */
+	private Channel channel(GSpeechResponseListener target) {
+		GSpeechResponseListener key = target != null ? target : NO_TARGET;
+		synchronized(channels){
+			Channel channel = channels.get(key);
+			if(channel == null){
+				purgeChannels();
+				channel = new Channel(target);
+				channels.put(key, channel);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Forgets the targets that have nothing left to deliver and whose interim window has passed, holding
+	 * the lock of the channels
+	 */
+	private void purgeChannels() {
+		long now = System.nanoTime();
+		long window = interimWindowNanos;
+		for(Iterator<Channel> it = channels.values().iterator(); it.hasNext(); ){
+			Channel channel = it.next();
+			synchronized(channel){
+				if(channel.queue.isEmpty() && !channel.draining && channel.held == null && channel.waiting == 0
+						&& (!channel.pacing || now - channel.sent >= window)){
+					channel.removed = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the interim window, holding the lock of the channel
+	 * @param channel The channel of the response's target
+	 * @param gr The response
+	 * @return True if the response is held back for now, false if it is to be queued
+	 */
+	private boolean hold(final Channel channel, GoogleResponse gr) {
+		if(gr.isFinalResponse()){
+			if(channel.held != null){
+				channel.held = null;
+				coalesced.incrementAndGet();
+			}
+			//The next utterance starts a new window
+			channel.pacing = false;
+			return false;
+		}
+		long window = interimWindowNanos;
+		if(window <= 0){
+			return false;
+		}
+		long now = System.nanoTime();
+		if(!channel.pacing){
+			channel.pacing = true;
+			channel.sent = now;
+			return false;
+		}
+		if(channel.held != null){
+			//Already waiting for the window to pass
+			channel.held = gr;
+			coalesced.incrementAndGet();
+			return true;
+		}
+		if(now - channel.sent >= window){
+			channel.sent = now;
+			return false;
+		}
+		channel.held = gr;
+		final long hold = ++channel.holds;
+		final Runnable release = new Runnable() {
+			public void run() {
+				release(channel, hold);
+			}
+		};
+		TimerHolder.TIMER.schedule(new Runnable() {
+			public void run() {
+				try {
+					executor().execute(release);
+				} catch (RejectedExecutionException e) {
+					release.run();
+				}
+			}
+		}, channel.sent + window - now, TimeUnit.NANOSECONDS);
+		return true;
+	}
+
+	/**
+	 * Queues the interim response held back for a target once its window has passed
+	 * @param hold The number of the hold the release was scheduled for
+	 */
+	private void release(Channel channel, long hold) {
+		boolean start;
+		synchronized(channel){
+			if(channel.held == null || channel.holds != hold){
+				//Made obsolete by a final response or queued by a flush
+				return;
+			}
+			try {
+				start = enqueue(channel, takeHeld(channel));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if(start){
+			startDrain(channel);
+		}
+	}
+
+	/**
+	 * Takes the interim response held back, holding the lock of the channel
+	 */
+	private static GoogleResponse takeHeld(Channel channel) {
+		GoogleResponse gr = channel.held;
+		channel.held = null;
+		channel.sent = System.nanoTime();
+		return gr;
+	}
+
+	/**
+	 * Puts a response in the queue of its target, applying the overflow policy, holding the lock of the channel
+	 * @param channel The channel of the target
+	 * @param gr The response
+	 * @return True if the delivery has to be started
+	 * @throws InterruptedException If interrupted while waiting for room in the queue
+	 */
+	private boolean enqueue(Channel channel, GoogleResponse gr) throws InterruptedException {
+		while(channel.queue.size() >= capacity){
+			if(overflow(channel, gr)){
+				return false;
+			}
+			//Keeps the channel from being purged while it is empty and the lock is released
+			channel.waiting++;
+			try {
+				channel.wait();
+			} finally {
+				channel.waiting--;
+			}
+		}
+		return add(channel, gr);
+	}
+
+	/**
+	 * Puts a response in the queue of its target whether or not there is room, holding the lock of the channel
+	 * @return True if the delivery has to be started
+	 */
+	private static boolean add(Channel channel, GoogleResponse gr) {
+		channel.queue.addLast(gr);
+		channel.queued++;
+		if(channel.draining){
+			return false;
+		}
+		channel.draining = true;
+		return true;
+	}
+
+	/**
+	 * Starts delivering the responses queued for a target
+	 */
+	private void startDrain(final Channel channel) {
+		try {
+			executor().execute(new Runnable() {
+				public void run() {
+					drain(channel);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			//The executor has been shut down, so the caller delivers
+			drain(channel);
+		}
+	}
+
+	/**
+	 * Gets the number of responses waiting for delivery
+	 * @return The number queued for all targets
+	 */
+	public int getQueuedCount() {
+		List<Channel> all;
+		synchronized(channels){
+			all = new ArrayList<Channel>(channels.values());
+		}
+		int count = 0;
+		for(Channel channel : all){
+			synchronized(channel){
+				count += channel.queue.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of responses delivered
+	 * @return The delivered count
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	/**
+	 * Gets the number of interim responses dropped because the queue was full
+	 * @return The dropped count
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Gets the number of interim responses replaced by newer ones, because the queue was full or within
+	 * the interim window
+	 * @return The coalesced count
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Applies the overflow policy, holding the lock of the channel
+	 * @param channel The full channel
+	 * @param gr The response that does not fit
+	 * @return True if the response has been dealt with, false to wait for room
+	 */
+	private boolean overflow(Channel channel, GoogleResponse gr) {
+		switch(overflowPolicy){
+		case DROP_INTERIM:
+			if(!gr.isFinalResponse()){
+				dropped.incrementAndGet();
+				return true;
+			}
+			for(Iterator<GoogleResponse> it = channel.queue.iterator(); it.hasNext(); ){
+				if(!it.next().isFinalResponse()){
+					it.remove();
+					channel.taken++;
+					dropped.incrementAndGet();
+					channel.notifyAll();
+					return false;
+				}
+			}
+			return false;
+		case COALESCE:
+			GoogleResponse newest = channel.queue.peekLast();
+			if(gr.isFinalResponse() || newest.isFinalResponse()){
+				//A final response, or the new response belongs to the next utterance
+				return false;
+			}
+			channel.queue.pollLast();
+			channel.queue.addLast(gr);
+			coalesced.incrementAndGet();
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Delivers the responses queued for a target until its queue is empty
+	 */
+	private void drain(Channel channel) {
+		while(true){
+			GoogleResponse gr;
+			synchronized(channel){
+				gr = channel.queue.pollFirst();
+				if(gr == null){
+					channel.draining = false;
+					return;
+				}
+			}
+			try {
+				for(GSpeechResponseListener rl : responseListeners){
+					deliver(rl, gr);
+				}
+				if(channel.target != null){
+					deliver(channel.target, gr);
+				}
+				delivered.incrementAndGet();
+			}
+			finally {
+				List<Runnable> due = null;
+				synchronized(channel){
+					channel.taken++;
+					channel.notifyAll();
+					while(!channel.completions.isEmpty() && channel.completions.peekFirst().mark <= channel.taken){
+						if(due == null){
+							due = new ArrayList<Runnable>();
+						}
+						due.add(channel.completions.pollFirst().task);
+					}
+				}
+				if(due != null){
+					for(Runnable task : due){
+						complete(task);
+					}
+				}
+			}
+		}
+	}
+
+	private static void complete(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void deliver(GSpeechResponseListener rl, GoogleResponse gr) {
+		try {
+			rl.onResponse(gr);
+		} catch (RuntimeException e) {
+			//One failing listener does not keep the response from the others
+			e.printStackTrace();
+		}
+	}
+
+	private Executor executor() {
+		Executor current = executor;
+		return current != null ? current : DefaultExecutorHolder.EXECUTOR;
+	}
+
+	/**
+	 * Responses of one target waiting for delivery and the state of its interim window, guarded by itself
+	 */
+	private static final class Channel {
+		private final GSpeechResponseListener target;
+		private final ArrayDeque<GoogleResponse> queue = new ArrayDeque<GoogleResponse>();
+		private boolean draining = false;
+
+		/**
+		 * Tasks waiting for the responses queued so far, see {@link ResponseDispatcher#whenDelivered}
+		 */
+		private final ArrayDeque<Completion> completions = new ArrayDeque<Completion>();
+
+		/**
+		 * Number of dispatchers waiting for room in the queue
+		 */
+		private int waiting = 0;
+
+		/**
+		 * Set once the channel has been purged, so responses go to a new one
+		 */
+		private boolean removed = false;
+
+		/**
+		 * Number of responses queued and number taken from the queue again, for {@link #flush()}
+		 */
+		private long queued = 0;
+		private long taken = 0;
+
+		/**
+		 * Interim response held back by the interim window, or null
+		 */
+		private GoogleResponse held;
+
+		/**
+		 * Number of times an interim response was held back, so a late release of an earlier one is ignored
+		 */
+		private long holds = 0;
+
+		/**
+		 * True once an interim response of the current utterance has been queued, at the time in sent
+		 */
+		private boolean pacing = false;
+		private long sent;
+
+		private Channel(GSpeechResponseListener target) {
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Task run once the number of responses taken from a queue reaches a mark
+	 */
+	private static final class Completion {
+		private final long mark;
+		private final Runnable task;
+
+		private Completion(long mark, Runnable task) {
+			this.mark = mark;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * Lazily creates the timer that queues held back interim responses
+	 */
+	private static final class TimerHolder {
+		private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ResponseDispatcher-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Lazily creates the executor shared by all dispatchers that do not have their own. A few threads more
+	 * than processors, so one slow listener does not hold up the other targets on small machines.
+	 */
+	private static final class DefaultExecutorHolder {
+		private static final ExecutorService EXECUTOR = newExecutor(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+	}
+
+}
@@ -18,6 +18,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import com.darkprograms.speech.translator.GoogleTranslate;
+import com.darkprograms.speech.util.RateLimiter;
 
 
 /**
@@ -50,6 +51,11 @@ public class SynthesiserV2 extends BaseSynthsiser {
 	 * The speed of the generated audio
 	 */
 	private double speed = 1.0;
+
+	/**
+	 * Limits the requests sent, null to use the limiter registered for the API key
+	 */
+	private RateLimiter rateLimiter = null;
 	
 	/**
 	 * Constructor
@@ -113,6 +119,19 @@ public class SynthesiserV2 extends BaseSynthsiser {
 		this.speed = speed;
 	}
 	
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the limiter every request takes a token from. Text longer than 100 characters is sent
+	 * in several requests, each of which takes a token.
+	 * @param rateLimiter The RateLimiter to use, or null to use the one registered for the API key, if any (default)
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
 	@Override
 	public InputStream getMP3Data(String synthText) throws IOException{
 
@@ -158,6 +177,11 @@ public class SynthesiserV2 extends BaseSynthsiser {
 		
 		URL url = new URL(sb.toString()); //create url
 
+		RateLimiter limiter = rateLimiter != null ? rateLimiter : RateLimiter.forApiKey(API_KEY);
+		if(limiter != null){
+			limiter.acquire();
+		}
+
 		// Open New URL connection channel.
 		URLConnection urlConn = url.openConnection(); //Open connection
 
@@ -0,0 +1,36 @@
+package com.darkprograms.speech.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a server answers a request with an error status, so callers can tell
+ * a rejected request from a broken connection.
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The HTTP status code of the response
+	 */
+	private final int statusCode;
+
+	/**
+	 * Constructor
+	 * @param statusCode The HTTP status code of the response
+	 * @param message Description of the request that failed
+	 */
+	public HttpStatusException(int statusCode, String message) {
+		super(message + " (HTTP " + statusCode + ")");
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * Gets the HTTP status code of the response
+	 * @return The status code, e.g. 503
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+}
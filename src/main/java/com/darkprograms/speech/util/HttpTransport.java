@@ -0,0 +1,33 @@
+package com.darkprograms.speech.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the HTTP connections used to talk to Google. Every connection that is opened must be handed back
+ * through {@link #releaseConnection(HttpURLConnection, boolean)} once its response has been read, which lets an
+ * implementation reuse the socket and enforce connection limits.
+ * <p>Implementations can also redirect requests, e.g. to a local stand-in server for testing.</p>
+ */
+public interface HttpTransport {
+
+	/**
+	 * Opens a connection to the URL. The request has not been sent yet, so the caller can still set
+	 * the method, headers and streaming mode.
+	 * @param url The URL to connect to
+	 * @return The connection
+	 * @throws IOException If no connection can be opened
+	 */
+	public HttpURLConnection openConnection(URL url) throws IOException;
+
+	/**
+	 * Releases a connection opened by this transport once the caller is done with it, whether or not the
+	 * request succeeded.
+	 * @param connection The connection to release
+	 * @param reusable True if the response body was read to the end and closed, so the socket can serve
+	 * another request. False after a failure, which closes the socket.
+	 */
+	public void releaseConnection(HttpURLConnection connection, boolean reusable);
+
+}
@@ -0,0 +1,415 @@
+package com.darkprograms.speech.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for JSON text read straight from a stream.
+ * <p>Each call to {@link #next()} returns the next token; names, strings and numbers can then be read with
+ * {@link #getText()}, compared with {@link #textEquals(String)} or, for numbers, converted with
+ * {@link #getDouble()}. Nothing is allocated per token except the Strings that are asked for, so values
+ * the caller is not interested in cost nothing but the scan.</p>
+ * <p>Several JSON values may follow each other, as in the newline separated responses Google sends.
+ * The parser is lenient: commas and colons are only used to tell names from string values and are not
+ * otherwise validated.</p>
+ * <p>A parser can also be given one string after the other with {@link #reset(String)}, e.g. one per
+ * line of a stream, reusing its buffers.</p>
+ */
+public class JsonPullParser implements Closeable {
+
+	/**
+	 * The kinds of token the parser returns
+	 */
+	public enum Token {
+		BEGIN_OBJECT,
+		END_OBJECT,
+		BEGIN_ARRAY,
+		END_ARRAY,
+		/**
+		 * A string followed by a colon, i.e. the name of an object member
+		 */
+		NAME,
+		STRING,
+		NUMBER,
+		TRUE,
+		FALSE,
+		NULL,
+		/**
+		 * The input is exhausted
+		 */
+		END_DOCUMENT
+	}
+
+	/**
+	 * Exact powers of ten for converting short decimals
+	 */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+
+	/**
+	 * Size the read buffer starts at and the most it grows to while reading from a reader. Most responses
+	 * are a few hundred characters, so small ones are parsed without a large buffer.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 512;
+	private static final int MAX_BUFFER_SIZE = 8192;
+
+	/**
+	 * The input, null while parsing a string given to {@link #reset(String)}
+	 */
+	private Reader reader;
+
+	/**
+	 * Input read ahead from the reader, or the string being parsed
+	 */
+	private char[] buffer = new char[INITIAL_BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	/**
+	 * Text of the current name, string or number
+	 */
+	private char[] text = new char[64];
+	private int textLength = 0;
+
+	/**
+	 * Constructor
+	 * @param reader The JSON text. It is read in blocks that grow with the input, so it does not need to be buffered.
+	 */
+	public JsonPullParser(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Constructor for a parser of strings given to {@link #reset(String)}
+	 */
+	public JsonPullParser() {
+		this.reader = null;
+	}
+
+	/**
+	 * Starts parsing a string, dropping whatever was left of the previous input. The string is copied
+	 * into the parser's buffer, which only grows if the string does not fit.
+	 * @param json The JSON text
+	 */
+	public void reset(String json) {
+		reader = null;
+		if(json.length() > buffer.length){
+			buffer = new char[Math.max(json.length(), buffer.length * 2)];
+		}
+		json.getChars(0, json.length(), buffer, 0);
+		position = 0;
+		limit = json.length();
+	}
+
+	/**
+	 * Reads the next token.
+	 * @return The token, END_DOCUMENT once the input is exhausted
+	 * @throws IOException If the input cannot be read or is not JSON
+	 */
+	public Token next() throws IOException {
+		int c = nextSignificant();
+		switch(c){
+		case -1:
+			return Token.END_DOCUMENT;
+		case '{':
+			return Token.BEGIN_OBJECT;
+		case '}':
+			return Token.END_OBJECT;
+		case '[':
+			return Token.BEGIN_ARRAY;
+		case ']':
+			return Token.END_ARRAY;
+		case '"':
+			readString();
+			//A string is a name if a colon follows it
+			c = nextSignificant();
+			if(c == ':'){
+				return Token.NAME;
+			}
+			if(c != -1){
+				position--;
+			}
+			return Token.STRING;
+		case 't':
+			expectLiteral("rue");
+			return Token.TRUE;
+		case 'f':
+			expectLiteral("alse");
+			return Token.FALSE;
+		case 'n':
+			expectLiteral("ull");
+			return Token.NULL;
+		default:
+			if(c == '-' || (c >= '0' && c <= '9')){
+				readNumber((char)c);
+				return Token.NUMBER;
+			}
+			throw new IOException("Unexpected character in JSON: " + (char)c);
+		}
+	}
+
+	/**
+	 * Gets the text of the current name, string or number
+	 * @return The unescaped text
+	 */
+	public String getText() {
+		return new String(text, 0, textLength);
+	}
+
+	/**
+	 * Compares the text of the current name, string or number without creating a String
+	 * @param value The value to compare with
+	 * @return True if the text equals the value
+	 */
+	public boolean textEquals(String value) {
+		if(value.length() != textLength){
+			return false;
+		}
+		for(int i = 0; i < textLength; i++){
+			if(text[i] != value.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Converts the current number
+	 * @return The value of the number
+	 * @throws IOException If the current text is not a number
+	 */
+	public double getDouble() throws IOException {
+		//Fast path for plain decimals of up to 15 digits, which convert exactly through a long
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean fraction = false;
+		boolean negative = false;
+		int i = 0;
+		if(textLength > 0 && text[0] == '-'){
+			negative = true;
+			i++;
+		}
+		for(; i < textLength; i++){
+			char c = text[i];
+			if(c >= '0' && c <= '9'){
+				if(++digits > 15){
+					break;
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if(fraction){
+					scale++;
+				}
+			}
+			else if(c == '.' && !fraction){
+				fraction = true;
+			}
+			else{
+				break;
+			}
+		}
+		if(i == textLength && digits > 0){
+			double value = mantissa / POWERS_OF_TEN[scale];
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(getText());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid number in JSON: " + getText());
+		}
+	}
+
+	/**
+	 * Skips the next value, including everything nested in it. Call after a NAME to skip its value.
+	 * @throws IOException If the input cannot be read or ends inside the value
+	 */
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			switch(next()){
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				depth++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				depth--;
+				break;
+			case END_DOCUMENT:
+				throw new IOException("Unexpected end of JSON");
+			default:
+				break;
+			}
+		} while(depth > 0);
+	}
+
+	/**
+	 * Closes the underlying reader
+	 */
+	@Override
+	public void close() throws IOException {
+		if(reader != null){
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads the next character that is not white space or a comma.
+	 */
+	private int nextSignificant() throws IOException {
+		while(true){
+			if(position == limit && !fill()){
+				return -1;
+			}
+			char c = buffer[position++];
+			if(c == ':'){
+				return c;
+			}
+			if(c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != ','){
+				return c;
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if(reader == null){
+			return false;
+		}
+		//Everything read so far has been consumed, so a full buffer can be replaced by a larger one
+		if(limit == buffer.length && buffer.length < MAX_BUFFER_SIZE){
+			buffer = new char[buffer.length * 2];
+		}
+		int read = reader.read(buffer, 0, buffer.length);
+		while(read == 0){
+			read = reader.read(buffer, 0, buffer.length);
+		}
+		if(read < 0){
+			return false;
+		}
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	private int read() throws IOException {
+		if(position == limit && !fill()){
+			return -1;
+		}
+		return buffer[position++];
+	}
+
+	/**
+	 * Reads a string whose opening quote has been consumed into the text buffer, resolving escapes.
+	 */
+	private void readString() throws IOException {
+		textLength = 0;
+		while(true){
+			//Copies runs without escapes straight from the read buffer
+			int start = position;
+			while(position < limit){
+				char c = buffer[position];
+				if(c == '"' || c == '\\'){
+					break;
+				}
+				position++;
+			}
+			append(buffer, start, position - start);
+			int c = read();
+			if(c == '"'){
+				return;
+			}
+			if(c == -1){
+				throw new IOException("Unterminated string in JSON");
+			}
+			if(c == '\\'){
+				append(readEscape());
+			}
+			else{
+				//Buffer was exhausted, c is ordinary text
+				append((char)c);
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = read();
+		switch(c){
+		case '"':
+		case '\\':
+		case '/':
+			return (char)c;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int value = 0;
+			for(int i = 0; i < 4; i++){
+				int digit = Character.digit(read(), 16);
+				if(digit < 0){
+					throw new IOException("Invalid unicode escape in JSON");
+				}
+				value = (value << 4) | digit;
+			}
+			return (char)value;
+		default:
+			throw new IOException("Invalid escape in JSON");
+		}
+	}
+
+	private void readNumber(char first) throws IOException {
+		textLength = 0;
+		append(first);
+		while(true){
+			if(position == limit && !fill()){
+				return;
+			}
+			char c = buffer[position];
+			if((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-'){
+				append(c);
+				position++;
+			}
+			else{
+				return;
+			}
+		}
+	}
+
+	private void expectLiteral(String rest) throws IOException {
+		for(int i = 0; i < rest.length(); i++){
+			if(read() != rest.charAt(i)){
+				throw new IOException("Invalid literal in JSON");
+			}
+		}
+	}
+
+	private void append(char c) {
+		if(textLength == text.length){
+			grow(textLength + 1);
+		}
+		text[textLength++] = c;
+	}
+
+	private void append(char[] chars, int offset, int count) {
+		if(textLength + count > text.length){
+			grow(textLength + count);
+		}
+		System.arraycopy(chars, offset, text, textLength, count);
+		textLength += count;
+	}
+
+	private void grow(int minimum) {
+		char[] grown = new char[Math.max(minimum, text.length * 2)];
+		System.arraycopy(text, 0, grown, 0, textLength);
+		text = grown;
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.darkprograms.speech.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines of a UTF-8 stream, e.g. the responses Google streams one per line.
+ * <p>The stream is read into one buffer that is reused for every line, and lines are split on the bytes
+ * themselves. A line is returned as soon as its newline has arrived, without waiting for more input, and
+ * only lines with content are decoded; empty and blank lines are skipped.</p>
+ */
+public class LineReader implements Closeable {
+
+	/**
+	 * Default size of the buffer, which grows for longer lines
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	private final InputStream in;
+	private byte[] buffer;
+	private int position = 0;
+	private int limit = 0;
+
+	/**
+	 * Constructor
+	 * @param in The stream to read. It is read in blocks, so it does not need to be buffered.
+	 */
+	public LineReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 * @param in The stream to read
+	 * @param bufferSize The initial size of the buffer
+	 */
+	public LineReader(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buffer = new byte[Math.max(16, bufferSize)];
+	}
+
+	/**
+	 * Reads the next line that is not blank
+	 * @return The line without its line terminator and surrounding white space, or null at the end of the stream
+	 * @throws IOException If the stream cannot be read
+	 */
+	public String readLine() throws IOException {
+		//Bytes after position that are known not to hold a newline
+		int searched = 0;
+		while(true){
+			for(int i = position + searched; i < limit; i++){
+				if(buffer[i] == '\n'){
+					String line = decode(position, i);
+					position = i + 1;
+					if(line != null){
+						return line;
+					}
+					i = position - 1;
+				}
+			}
+			searched = limit - position;
+			if(!fill()){
+				//The last line may lack a newline
+				String line = decode(position, limit);
+				position = limit;
+				return line;
+			}
+		}
+	}
+
+	/**
+	 * Closes the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads more of the stream after the bytes not yet returned, making room first
+	 * @return False at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		int remaining = limit - position;
+		if(position > 0){
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+			position = 0;
+			limit = remaining;
+		}
+		if(limit == buffer.length){
+			byte[] grown = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, grown, 0, limit);
+			buffer = grown;
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		while(read == 0){
+			read = in.read(buffer, limit, buffer.length - limit);
+		}
+		if(read < 0){
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	/**
+	 * Decodes a line, leaving out surrounding white space including a carriage return
+	 * @return The line, or null if it is blank
+	 */
+	private String decode(int start, int end) {
+		while(start < end && isWhitespace(buffer[start])){
+			start++;
+		}
+		while(end > start && isWhitespace(buffer[end - 1])){
+			end--;
+		}
+		if(start == end){
+			return null;
+		}
+		return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\r' || b == '\t' || b == '\n';
+	}
+
+}
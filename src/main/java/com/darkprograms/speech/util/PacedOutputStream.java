@@ -0,0 +1,116 @@
+package com.darkprograms.speech.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Stream that passes data on at a steady rate, in small flushed chunks.
+ * <p>The rate is kept against the time the stream was created rather than per write, so time spent
+ * blocked in the underlying stream counts towards the schedule instead of adding to it. An initial burst
+ * may be written without waiting, e.g. to get the first words to a recognizer right away.</p>
+ * <p>A rate of {@link Double#POSITIVE_INFINITY} passes everything on as fast as the underlying stream
+ * accepts it.</p>
+ */
+public class PacedOutputStream extends FilterOutputStream {
+
+	/**
+	 * Default size of the chunks written and flushed at once
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	private final double bytesPerSecond;
+	private final long burstBytes;
+	private final int chunkSize;
+	private final long start;
+
+	/**
+	 * Bytes written so far
+	 */
+	private long written = 0;
+
+	/**
+	 * Constructor
+	 * @param out The stream to write to
+	 * @param bytesPerSecond The rate to write at, POSITIVE_INFINITY for no limit
+	 * @param burstBytes Bytes that may be written right away, before the rate applies
+	 */
+	public PacedOutputStream(OutputStream out, double bytesPerSecond, long burstBytes) {
+		this(out, bytesPerSecond, burstBytes, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 * @param out The stream to write to
+	 * @param bytesPerSecond The rate to write at, POSITIVE_INFINITY for no limit
+	 * @param burstBytes Bytes that may be written right away, before the rate applies
+	 * @param chunkSize The size of the chunks written and flushed at once
+	 */
+	public PacedOutputStream(OutputStream out, double bytesPerSecond, long burstBytes, int chunkSize) {
+		super(out);
+		if(!(bytesPerSecond > 0)){
+			throw new IllegalArgumentException("bytesPerSecond must be positive");
+		}
+		this.bytesPerSecond = bytesPerSecond;
+		this.burstBytes = Math.max(0, burstBytes);
+		this.chunkSize = Math.max(1, chunkSize);
+		this.start = System.nanoTime();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		pace(1);
+		out.write(b);
+		written++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(Double.isInfinite(bytesPerSecond)){
+			out.write(b, off, len);
+			written += len;
+			return;
+		}
+		while(len > 0){
+			int chunk = Math.min(len, chunkSize);
+			pace(chunk);
+			out.write(b, off, chunk);
+			out.flush();
+			written += chunk;
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Gets the number of bytes written so far
+	 * @return The byte count
+	 */
+	public long getBytesWritten() {
+		return written;
+	}
+
+	/**
+	 * Waits until the next bytes are due
+	 * @param count The number of bytes about to be written
+	 * @throws InterruptedIOException If the thread is interrupted while waiting
+	 */
+	private void pace(int count) throws InterruptedIOException {
+		long due = written + count - burstBytes;
+		if(due <= 0 || Double.isInfinite(bytesPerSecond)){
+			return;
+		}
+		long wait = start + (long)(due / bytesPerSecond * 1e9) - System.nanoTime();
+		if(wait <= 0){
+			return;
+		}
+		try {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while pacing the stream");
+		}
+	}
+
+}
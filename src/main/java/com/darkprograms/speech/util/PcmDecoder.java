@@ -0,0 +1,169 @@
+package com.darkprograms.speech.util;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Converts raw PCM bytes into int samples in bulk.
+ * Handles 8, 16, 24 and 32 bit samples, signed or unsigned, in either byte order.
+ * Nothing is allocated per call, so the same decoder and destination array can be reused
+ * for every block of a stream.
+ */
+public class PcmDecoder {
+
+	/**
+	 * Number of bytes in a single sample of a single channel
+	 */
+	private final int bytesPerSample;
+
+	/**
+	 * True if the most significant byte comes first
+	 */
+	private final boolean bigEndian;
+
+	/**
+	 * True if samples are stored with an offset of half the range and need to be re-centered
+	 */
+	private final boolean unsigned;
+
+	/**
+	 * Constructor
+	 * @param sampleSizeInBits Bits per sample, one of 8, 16, 24 or 32
+	 * @param signed True for PCM_SIGNED data, false for PCM_UNSIGNED
+	 * @param bigEndian True if the data is big endian. Ignored for 8 bit samples.
+	 */
+	public PcmDecoder(int sampleSizeInBits, boolean signed, boolean bigEndian) {
+		if(sampleSizeInBits != 8 && sampleSizeInBits != 16 && sampleSizeInBits != 24 && sampleSizeInBits != 32){
+			throw new IllegalArgumentException("Unsupported sample size: " + sampleSizeInBits);
+		}
+		this.bytesPerSample = sampleSizeInBits / 8;
+		this.unsigned = !signed;
+		this.bigEndian = bigEndian;
+	}
+
+	/**
+	 * Constructor
+	 * @param format The format of the PCM data. Must be PCM_SIGNED or PCM_UNSIGNED.
+	 */
+	public PcmDecoder(AudioFormat format) {
+		this(format.getSampleSizeInBits(), checkEncoding(format), format.isBigEndian());
+	}
+
+	/**
+	 * Makes sure the format holds integer PCM data.
+	 * @param format The format to check
+	 * @return True if the format is signed
+	 */
+	private static boolean checkEncoding(AudioFormat format) {
+		AudioFormat.Encoding encoding = format.getEncoding();
+		if(AudioFormat.Encoding.PCM_SIGNED.equals(encoding)){
+			return true;
+		}
+		if(AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)){
+			return false;
+		}
+		throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+	}
+
+	/**
+	 * Gets the number of bytes a single sample takes up
+	 * @return The bytes per sample
+	 */
+	public int getBytesPerSample() {
+		return bytesPerSample;
+	}
+
+	/**
+	 * Decodes PCM bytes into signed int samples. Channels stay interleaved as they are in the input.
+	 * @param src The PCM data
+	 * @param offset Offset of the first byte to decode
+	 * @param length Number of bytes to decode. Trailing bytes that do not form a whole sample are ignored.
+	 * @param dest Array to store the samples in, starting at index 0. Must hold length / bytesPerSample values.
+	 * @return The number of samples written to dest
+	 */
+	public int decode(byte[] src, int offset, int length, int[] dest) {
+		int count = length / bytesPerSample;
+		int end = offset + count * bytesPerSample;
+		int i = offset;
+		int j = 0;
+		switch(bytesPerSample){
+		case 1:
+			if(unsigned){
+				while(i < end){
+					dest[j++] = (src[i++] & 0xFF) - 0x80;
+				}
+			}
+			else{
+				while(i < end){
+					dest[j++] = src[i++];
+				}
+			}
+			break;
+		case 2:
+			if(bigEndian){
+				while(i < end){
+					dest[j++] = (short)((src[i] << 8) | (src[i + 1] & 0xFF));
+					i += 2;
+				}
+			}
+			else{
+				while(i < end){
+					dest[j++] = (short)((src[i + 1] << 8) | (src[i] & 0xFF));
+					i += 2;
+				}
+			}
+			if(unsigned){
+				flipSign(dest, count, ~0x7FFF);
+			}
+			break;
+		case 3:
+			if(bigEndian){
+				while(i < end){
+					dest[j++] = (src[i] << 16) | ((src[i + 1] & 0xFF) << 8) | (src[i + 2] & 0xFF);
+					i += 3;
+				}
+			}
+			else{
+				while(i < end){
+					dest[j++] = (src[i + 2] << 16) | ((src[i + 1] & 0xFF) << 8) | (src[i] & 0xFF);
+					i += 3;
+				}
+			}
+			if(unsigned){
+				flipSign(dest, count, ~0x7FFFFF);
+			}
+			break;
+		default:
+			if(bigEndian){
+				while(i < end){
+					dest[j++] = (src[i] << 24) | ((src[i + 1] & 0xFF) << 16) | ((src[i + 2] & 0xFF) << 8) | (src[i + 3] & 0xFF);
+					i += 4;
+				}
+			}
+			else{
+				while(i < end){
+					dest[j++] = (src[i + 3] << 24) | ((src[i + 2] & 0xFF) << 16) | ((src[i + 1] & 0xFF) << 8) | (src[i] & 0xFF);
+					i += 4;
+				}
+			}
+			if(unsigned){
+				flipSign(dest, count, Integer.MIN_VALUE);
+			}
+			break;
+		}
+		return count;
+	}
+
+	/**
+	 * Converts sign extended unsigned samples to signed ones by toggling the sign bit of the sample width
+	 * together with the extension bits above it.
+	 * @param samples The samples to convert
+	 * @param count The number of samples to convert
+	 * @param signMask The sign bit of the sample width and every bit above it
+	 */
+	private static void flipSign(int[] samples, int count, int signMask) {
+		for(int i = 0; i < count; i++){
+			samples[i] ^= signMask;
+		}
+	}
+
+}
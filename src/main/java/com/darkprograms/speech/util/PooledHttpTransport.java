@@ -0,0 +1,193 @@
+package com.darkprograms.speech.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpTransport that keeps connections alive between requests and bounds the number of connections open
+ * to each host.
+ * <p>Sockets are pooled by the JDK's HTTP keep-alive cache, which reuses a socket only when the previous
+ * response was read to the end and its stream closed rather than disconnected. This class drains unread
+ * error responses on release so that failed requests do not cost a socket, applies connect and read
+ * timeouts to every connection and blocks callers while a host already has the maximum number of requests
+ * in flight. The number of idle sockets the JDK keeps per host is controlled by the
+ * <code>http.maxConnections</code> system property (5 by default).</p>
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+	/**
+	 * Default connect timeout in milliseconds
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 20000;
+
+	/**
+	 * Default read timeout in milliseconds
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 60000;
+
+	/**
+	 * Transport shared by all classes that do not specify their own. No per host limit.
+	 */
+	private static final PooledHttpTransport DEFAULT_TRANSPORT = new PooledHttpTransport(DEFAULT_CONNECT_TIMEOUT,
+			DEFAULT_READ_TIMEOUT, 0);
+
+	/**
+	 * Largest amount of an unread response that is drained on release to keep the socket reusable.
+	 * Anything longer is cheaper to reconnect for.
+	 */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxConnectionsPerHost;
+
+	/**
+	 * Permits per host, only used if the connections per host are limited
+	 */
+	private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	/**
+	 * Permits held by open connections
+	 */
+	private final ConcurrentMap<HttpURLConnection, Semaphore> heldPermits = new ConcurrentHashMap<HttpURLConnection, Semaphore>();
+
+	/**
+	 * Constructor
+	 * @param connectTimeout Connect timeout in milliseconds, 0 for none. Also the longest time to wait for a free connection.
+	 * @param readTimeout Read timeout in milliseconds, 0 for none
+	 * @param maxConnectionsPerHost The maximum number of connections open to one host at once, 0 for no limit
+	 */
+	public PooledHttpTransport(int connectTimeout, int readTimeout, int maxConnectionsPerHost) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	/**
+	 * Gets the transport shared by the recognizer classes
+	 * @return The default transport
+	 */
+	public static PooledHttpTransport getDefault() {
+		return DEFAULT_TRANSPORT;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	@Override
+	public HttpURLConnection openConnection(URL url) throws IOException {
+		Semaphore permits = null;
+		if(maxConnectionsPerHost > 0){
+			permits = permitsFor(url);
+			try {
+				if(connectTimeout > 0){
+					if(!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)){
+						throw new IOException("Timed out waiting for a connection to " + url.getHost());
+					}
+				}
+				else{
+					permits.acquire();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a connection to " + url.getHost());
+			}
+		}
+		try {
+			URLConnection urlConn = url.openConnection();
+			if (!(urlConn instanceof HttpURLConnection)) {
+				throw new IOException("URL is not an HTTP URL");
+			}
+			HttpURLConnection httpConn = (HttpURLConnection)urlConn;
+			httpConn.setConnectTimeout(connectTimeout);
+			httpConn.setReadTimeout(readTimeout);
+			httpConn.setRequestProperty("Connection", "keep-alive");
+			if(permits != null){
+				heldPermits.put(httpConn, permits);
+			}
+			return httpConn;
+		} catch (IOException e) {
+			if(permits != null){
+				permits.release();
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void releaseConnection(HttpURLConnection connection, boolean reusable) {
+		try {
+			if(reusable){
+				//An unread error body would keep the socket out of the keep-alive cache
+				InputStream errorStream = connection.getErrorStream();
+				if(errorStream != null){
+					drain(errorStream);
+				}
+			}
+			else{
+				connection.disconnect();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		} finally {
+			Semaphore permits = heldPermits.remove(connection);
+			if(permits != null){
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Reads and discards what is left of a response, then closes the stream.
+	 * @param in The response stream
+	 * @throws IOException If the stream cannot be read or is too long to be worth draining
+	 */
+	private static void drain(InputStream in) throws IOException {
+		try {
+			byte[] buffer = new byte[4096];
+			int total = 0;
+			int read;
+			while((read = in.read(buffer)) != -1){
+				total += read;
+				if(total > MAX_DRAIN){
+					throw new IOException("Response too long to drain");
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the permits for the host of the URL, creating them if needed.
+	 */
+	private Semaphore permitsFor(URL url) {
+		String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+		Semaphore permits = hostPermits.get(key);
+		if(permits == null){
+			Semaphore created = new Semaphore(maxConnectionsPerHost, true);
+			permits = hostPermits.putIfAbsent(key, created);
+			if(permits == null){
+				permits = created;
+			}
+		}
+		return permits;
+	}
+
+}
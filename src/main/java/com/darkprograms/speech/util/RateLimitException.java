@@ -0,0 +1,35 @@
+package com.darkprograms.speech.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a {@link RateLimiter} would have to hold a request back for longer than its maximum wait.
+ * The request has not been sent.
+ */
+public class RateLimitException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Time the request would have had to wait
+	 */
+	private final long waitMillis;
+
+	/**
+	 * Constructor
+	 * @param waitMillis Time the request would have had to wait
+	 */
+	public RateLimitException(long waitMillis) {
+		super("Rate limit exceeded, next request allowed in " + waitMillis + " ms");
+		this.waitMillis = waitMillis;
+	}
+
+	/**
+	 * Gets the time the request would have had to wait
+	 * @return The wait in milliseconds
+	 */
+	public long getWaitMillis() {
+		return waitMillis;
+	}
+
+}
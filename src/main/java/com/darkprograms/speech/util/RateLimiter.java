@@ -0,0 +1,214 @@
+package com.darkprograms.speech.util;
+
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that keeps the requests made with an API key within its quota.
+ * <p>Tokens are added at a steady rate up to the burst size, and every request takes one. A request that
+ * finds the bucket empty reserves the next token and waits for it, so waiting requests are served in the
+ * order they arrived. If the reserved token is further away than the maximum wait, the request fails with
+ * a {@link RateLimitException} instead, without taking a token.</p>
+ * <p>A limiter registered with {@link #setForApiKey(String, RateLimiter)} is used by every
+ * {@code Recognizer}, {@code RecognizerChunked}, {@code GSpeechDuplex} and {@code SynthesiserV2} with that
+ * key, so all of them share one budget. A limiter set directly on one of these classes takes precedence.</p>
+ */
+public class RateLimiter {
+
+	/**
+	 * Limiters registered per API key
+	 */
+	private static final ConcurrentHashMap<String, RateLimiter> API_KEY_LIMITERS = new ConcurrentHashMap<String, RateLimiter>();
+
+	private final double permitsPerSecond;
+	private final double burst;
+
+	/**
+	 * Longest a request may wait for a token, in nanoseconds, negative for no limit
+	 */
+	private volatile long maxWaitNanos = -1;
+
+	/**
+	 * Tokens in the bucket. Negative while requests are waiting for tokens that have been reserved.
+	 */
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Statistics
+	 */
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/**
+	 * Constructor for a limiter without bursts
+	 * @param permitsPerSecond Requests allowed per second on average
+	 */
+	public RateLimiter(double permitsPerSecond) {
+		this(permitsPerSecond, 1);
+	}
+
+	/**
+	 * Constructor
+	 * @param permitsPerSecond Requests allowed per second on average
+	 * @param burst Requests allowed at once after a quiet period, at least 1
+	 */
+	public RateLimiter(double permitsPerSecond, int burst) {
+		if(permitsPerSecond <= 0){
+			throw new IllegalArgumentException("permitsPerSecond must be positive");
+		}
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Registers the limiter shared by everything that sends requests with an API key
+	 * @param apiKey The API key
+	 * @param limiter The limiter, or null to stop limiting the key
+	 */
+	public static void setForApiKey(String apiKey, RateLimiter limiter) {
+		if(limiter == null){
+			API_KEY_LIMITERS.remove(apiKey);
+		}
+		else{
+			API_KEY_LIMITERS.put(apiKey, limiter);
+		}
+	}
+
+	/**
+	 * Gets the limiter registered for an API key
+	 * @param apiKey The API key, may be null
+	 * @return The limiter, or null if requests with the key are not limited
+	 */
+	public static RateLimiter forApiKey(String apiKey) {
+		return apiKey != null ? API_KEY_LIMITERS.get(apiKey) : null;
+	}
+
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+
+	public int getBurst() {
+		return (int)burst;
+	}
+
+	/**
+	 * Gets the longest a request may wait for a token
+	 * @return The wait in milliseconds, negative for no limit
+	 */
+	public long getMaxWaitMillis() {
+		return maxWaitNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+	}
+
+	/**
+	 * Sets the longest a request may wait for a token before it fails with a {@link RateLimitException}
+	 * @param maxWaitMillis The wait in milliseconds, 0 to never wait, negative to wait as long as it takes (default)
+	 */
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitNanos = maxWaitMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+
+	/**
+	 * Takes a token, waiting for one if the bucket is empty.
+	 * @return The time waited in nanoseconds
+	 * @throws RateLimitException If the token is further away than the maximum wait
+	 * @throws InterruptedIOException If the thread is interrupted while waiting
+	 */
+	public long acquire() throws RateLimitException, InterruptedIOException {
+		long wait = reserve();
+		acquired.incrementAndGet();
+		if(wait <= 0){
+			return 0;
+		}
+		throttled.incrementAndGet();
+		waitNanos.addAndGet(wait);
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+		}
+		return wait;
+	}
+
+	/**
+	 * Takes a token if one is available right away
+	 * @return True if a token was taken
+	 */
+	public synchronized boolean tryAcquire() {
+		refill(System.nanoTime());
+		if(tokens < 1){
+			return false;
+		}
+		tokens--;
+		acquired.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Reserves the next token
+	 * @return Nanoseconds until the token is available
+	 */
+	private synchronized long reserve() throws RateLimitException {
+		refill(System.nanoTime());
+		long wait = tokens >= 1 ? 0 : (long)((1 - tokens) / permitsPerSecond * 1e9);
+		long maxWait = maxWaitNanos;
+		if(maxWait >= 0 && wait > maxWait){
+			rejected.incrementAndGet();
+			throw new RateLimitException(TimeUnit.NANOSECONDS.toMillis(wait));
+		}
+		tokens--;
+		return wait;
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerSecond / 1e9);
+		lastRefill = now;
+	}
+
+	/**
+	 * Gets the number of tokens taken
+	 * @return The number of requests let through
+	 */
+	public long getAcquiredCount() {
+		return acquired.get();
+	}
+
+	/**
+	 * Gets the number of requests that had to wait for a token
+	 * @return The throttled count
+	 */
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	/**
+	 * Gets the number of requests that failed because they would have waited too long
+	 * @return The rejected count
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Gets the total time requests have waited for tokens
+	 * @return The wait in milliseconds
+	 */
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%.2f/s burst %d: %d acquired, %d throttled, %d rejected, %d ms waited",
+				permitsPerSecond, getBurst(), getAcquiredCount(), getThrottledCount(), getRejectedCount(), getTotalWaitMillis());
+	}
+
+}
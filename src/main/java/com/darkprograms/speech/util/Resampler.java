@@ -0,0 +1,333 @@
+package com.darkprograms.speech.util;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter with an optional down-mix to mono.
+ * <p>The rate is changed by the rational factor outputRate/inputRate with a polyphase windowed-sinc
+ * filter, so only the filter taps needed for each output sample are evaluated. The filter cuts off just
+ * below the lower of the two Nyquist frequencies, which keeps aliasing out of down-sampled audio.
+ * State is carried between calls, so a stream can be fed in blocks of any size.</p>
+ * <p>Usage: call {@link #process(int[], int, int[])} for every block and {@link #flush(int[])} once at
+ * the end of the stream. The total output length is the input length scaled by the rate ratio and the
+ * output is time aligned with the input.</p>
+ */
+public class Resampler {
+
+	/**
+	 * Zero crossings of the sinc on either side of the centre, at the output rate
+	 */
+	private static final int HALF_TAPS = 16;
+
+	/**
+	 * Kaiser window shape. Gives roughly 85 dB of stop band attenuation.
+	 */
+	private static final double KAISER_BETA = 8.0;
+
+	/**
+	 * Fraction of the Nyquist frequency that is kept
+	 */
+	private static final double PASS_BAND = 0.92;
+
+	/**
+	 * Input frames buffered per channel before older ones are discarded
+	 */
+	private static final int CHUNK_SIZE = 4096;
+
+	private final int inputRate;
+	private final int outputRate;
+	private final int inputChannels;
+	private final int outputChannels;
+
+	/**
+	 * Interpolation factor
+	 */
+	private final int up;
+
+	/**
+	 * Decimation factor
+	 */
+	private final int down;
+
+	/**
+	 * Filter taps per polyphase branch
+	 */
+	private final int taps;
+
+	/**
+	 * Filter coefficients, one row per phase. Row p holds the taps for the input samples x[i], x[i-1], ...
+	 */
+	private final float[][] coefficients;
+
+	/**
+	 * Input history per output channel. The first taps-1 entries are zeros that stand for silence before the stream.
+	 */
+	private final float[][] buffer;
+
+	/**
+	 * Number of valid entries in each buffer
+	 */
+	private int filled;
+
+	/**
+	 * Buffer index of the newest input sample the next output sample depends on
+	 */
+	private int cursor;
+
+	/**
+	 * Polyphase branch of the next output sample
+	 */
+	private int phase;
+
+	/**
+	 * Smallest and largest sample value of the output bit depth
+	 */
+	private final int minValue;
+	private final int maxValue;
+
+	/**
+	 * Input frames received and output frames produced so far
+	 */
+	private long inputFrames = 0;
+	private long outputFrames = 0;
+
+	/**
+	 * Constructor
+	 * @param inputRate Sample rate of the incoming audio
+	 * @param outputRate Sample rate to convert to
+	 * @param channels Channel count of the incoming audio
+	 * @param downmix True to average all channels into one, false to convert every channel
+	 * @param bitsPerSample Bit depth of the samples, used to clamp the output
+	 */
+	public Resampler(int inputRate, int outputRate, int channels, boolean downmix, int bitsPerSample) {
+		if(inputRate <= 0 || outputRate <= 0 || channels <= 0){
+			throw new IllegalArgumentException("Sample rates and channel count must be positive");
+		}
+		this.inputRate = inputRate;
+		this.outputRate = outputRate;
+		this.inputChannels = channels;
+		this.outputChannels = downmix ? 1 : channels;
+		this.maxValue = (1 << (bitsPerSample - 1)) - 1;
+		this.minValue = -(1 << (bitsPerSample - 1));
+
+		int gcd = gcd(inputRate, outputRate);
+		this.up = outputRate / gcd;
+		this.down = inputRate / gcd;
+
+		if(up == down){
+			taps = 1;
+			coefficients = new float[][] { { 1f } };
+		}
+		else{
+			//Down-sampling narrows the pass band, so the filter has to span proportionally more input samples
+			taps = (int)Math.ceil(2 * HALF_TAPS * Math.max(1.0, down / (double)up));
+			coefficients = designFilter(up, taps, PASS_BAND * 0.5 * Math.min(1.0, up / (double)down) / up);
+		}
+
+		buffer = new float[outputChannels][taps - 1 + CHUNK_SIZE];
+		filled = taps - 1;
+
+		//Starts half a filter length in so that the output lines up with the input instead of lagging behind it
+		long start = (long)(taps - 1) * up + (up * (long)taps - 1) / 2;
+		cursor = (int)(start / up);
+		phase = (int)(start % up);
+	}
+
+	/**
+	 * Gets the sample rate of the converted audio
+	 * @return The output sample rate
+	 */
+	public int getOutputRate() {
+		return outputRate;
+	}
+
+	/**
+	 * Gets the sample rate the converter expects
+	 * @return The input sample rate
+	 */
+	public int getInputRate() {
+		return inputRate;
+	}
+
+	/**
+	 * Gets the number of channels the converter produces
+	 * @return 1 if down-mixing, otherwise the input channel count
+	 */
+	public int getOutputChannels() {
+		return outputChannels;
+	}
+
+	/**
+	 * Upper bound of the output frames produced by {@link #process(int[], int, int[])} or {@link #flush(int[])},
+	 * used to size the output array.
+	 * @param frames The number of input frames
+	 * @return The maximum number of frames that can be produced from them
+	 */
+	public int getMaxOutputFrames(int frames) {
+		return (int)(((long)frames + taps) * up / down) + 2;
+	}
+
+	/**
+	 * Converts a block of samples.
+	 * @param in Interleaved input samples
+	 * @param frames The number of frames in the input
+	 * @param out Array for the interleaved output samples. Must hold getMaxOutputFrames(frames) * getOutputChannels() values.
+	 * @return The number of frames written to out
+	 */
+	public int process(int[] in, int frames, int[] out) {
+		inputFrames += frames;
+		int produced = 0;
+		int offset = 0;
+		while(offset < frames){
+			int count = Math.min(frames - offset, buffer[0].length - filled);
+			append(in, offset, count);
+			offset += count;
+			produced += convert(out, produced, Long.MAX_VALUE);
+			compact();
+		}
+		return produced;
+	}
+
+	/**
+	 * Ends the stream, producing the output that was held back by the filter delay.
+	 * @param out Array for the interleaved output samples. Must hold getMaxOutputFrames(0) * getOutputChannels() values.
+	 * @return The number of frames written to out
+	 */
+	public int flush(int[] out) {
+		long expected = (inputFrames * up + down - 1) / down;
+		int produced = 0;
+		while(outputFrames < expected){
+			int count = buffer[0].length - filled;
+			for(int c = 0; c < outputChannels; c++){
+				Arrays.fill(buffer[c], filled, filled + count, 0f);
+			}
+			filled += count;
+			produced += convert(out, produced, expected);
+			compact();
+		}
+		return produced;
+	}
+
+	/**
+	 * Copies input frames into the history buffers, mixing channels down if required.
+	 */
+	private void append(int[] in, int offset, int count) {
+		if(outputChannels == 1 && inputChannels > 1){
+			float scale = 1f / inputChannels;
+			float[] mono = buffer[0];
+			for(int i = 0, s = offset * inputChannels; i < count; i++){
+				int sum = 0;
+				for(int c = 0; c < inputChannels; c++){
+					sum += in[s++];
+				}
+				mono[filled + i] = sum * scale;
+			}
+		}
+		else{
+			for(int c = 0; c < outputChannels; c++){
+				float[] channel = buffer[c];
+				for(int i = 0, s = offset * inputChannels + c; i < count; i++, s += inputChannels){
+					channel[filled + i] = in[s];
+				}
+			}
+		}
+		filled += count;
+	}
+
+	/**
+	 * Produces every output frame whose input is available.
+	 * @param out The output array
+	 * @param frameOffset The frame in out to start writing at
+	 * @param limit Total output frame count not to exceed
+	 * @return The number of frames written
+	 */
+	private int convert(int[] out, int frameOffset, long limit) {
+		int produced = 0;
+		int o = frameOffset * outputChannels;
+		while(cursor < filled && outputFrames < limit){
+			float[] h = coefficients[phase];
+			for(int c = 0; c < outputChannels; c++){
+				float[] x = buffer[c];
+				double acc = 0;
+				for(int t = 0, i = cursor; t < taps; t++, i--){
+					acc += h[t] * x[i];
+				}
+				long value = Math.round(acc);
+				out[o++] = (int)(value > maxValue ? maxValue : value < minValue ? minValue : value);
+			}
+			produced++;
+			outputFrames++;
+			phase += down;
+			cursor += phase / up;
+			phase %= up;
+		}
+		return produced;
+	}
+
+	/**
+	 * Discards input that no future output depends on.
+	 */
+	private void compact() {
+		int shift = Math.min(cursor, filled) - (taps - 1);
+		if(shift <= 0){
+			return;
+		}
+		for(int c = 0; c < outputChannels; c++){
+			System.arraycopy(buffer[c], shift, buffer[c], 0, filled - shift);
+		}
+		filled -= shift;
+		cursor -= shift;
+	}
+
+	/**
+	 * Designs the Kaiser windowed sinc low pass filter and splits it into polyphase branches.
+	 * @param phases The interpolation factor
+	 * @param taps Taps per branch
+	 * @param cutoff Cut off frequency as a fraction of the up-sampled rate
+	 * @return The coefficients, one row per branch
+	 */
+	private static float[][] designFilter(int phases, int taps, double cutoff) {
+		int length = phases * taps;
+		//Centred on a whole tap so the delay matches the start offset chosen in the constructor
+		int centre = (length - 1) / 2;
+		double halfWidth = length / 2.0;
+		double norm = besselI0(KAISER_BETA);
+		float[][] branches = new float[phases][taps];
+		for(int k = 0; k < length; k++){
+			int t = k - centre;
+			double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+			double r = t / halfWidth;
+			double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / norm;
+			//Gain of phases makes up for the zeros inserted when up-sampling
+			branches[k % phases][k / phases] = (float)(sinc * window * phases);
+		}
+		return branches;
+	}
+
+	/**
+	 * Zeroth order modified Bessel function of the first kind, used by the Kaiser window.
+	 */
+	private static double besselI0(double x) {
+		double sum = 1;
+		double term = 1;
+		double half = x / 2;
+		for(int k = 1; k < 50; k++){
+			term *= (half / k) * (half / k);
+			sum += term;
+			if(term < sum * 1e-12){
+				break;
+			}
+		}
+		return sum;
+	}
+
+	private static int gcd(int a, int b) {
+		while(b != 0){
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+}
@@ -0,0 +1,290 @@
+package com.darkprograms.speech.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed request is tried again, and when a slow one is hedged.
+ * <p>Failed attempts are retried up to {@link #getMaxAttempts()} times in total, waiting an exponentially
+ * growing, randomly shortened delay in between so that many clients failing at once do not retry in lock
+ * step. Only transient failures are retried: the configured HTTP status codes (by default 408, 429 and 5xx
+ * gateway and availability errors), timeouts, refused or reset connections and responses cut off early.
+ * Every other failure is permanent.</p>
+ * <p>With a hedge percentile set, the policy also tracks recent request latencies. Classes that support
+ * hedging send a second, identical request once the first has been outstanding longer than that percentile
+ * of recent latencies, and use whichever answers first.</p>
+ * <p>Configure a policy before sharing it; the latency tracking is thread-safe.</p>
+ */
+public class RetryPolicy {
+
+	/**
+	 * A unit of work that is retried as a whole
+	 * @param <T> The result of the work
+	 */
+	public interface Attempt<T> {
+
+		/**
+		 * Performs the work once
+		 * @return The result
+		 * @throws IOException If the attempt failed
+		 */
+		T run() throws IOException;
+
+	}
+
+	/**
+	 * Status codes retried by default
+	 */
+	private static final int[] DEFAULT_RETRY_STATUS_CODES = { 408, 429, 500, 502, 503, 504 };
+
+	/**
+	 * Number of recent latencies hedging is based on
+	 */
+	private static final int LATENCY_WINDOW = 256;
+
+	/**
+	 * Latencies needed before the hedge delay is trusted
+	 */
+	private static final int MIN_LATENCY_SAMPLES = 20;
+
+	private int maxAttempts = 3;
+	private long initialBackoffMillis = 250;
+	private long maxBackoffMillis = 10000;
+	private double backoffMultiplier = 2.0;
+	private double jitter = 0.5;
+	private int[] retryStatusCodes = DEFAULT_RETRY_STATUS_CODES;
+
+	/**
+	 * Percentile of recent latencies after which a request is hedged, 0 if hedging is off
+	 */
+	private double hedgePercentile = 0;
+
+	/**
+	 * Shortest time to wait before hedging, however fast recent requests were
+	 */
+	private long minHedgeDelayMillis = 50;
+
+	/**
+	 * Ring buffer of recent latencies
+	 */
+	private final long[] latencies = new long[LATENCY_WINDOW];
+	private int latencyCount = 0;
+	private int latencyNext = 0;
+
+	/**
+	 * Constructor with 3 attempts and a backoff starting at 250 ms
+	 */
+	public RetryPolicy() {
+	}
+
+	/**
+	 * Constructor
+	 * @param maxAttempts Attempts in total, including the first
+	 * @param initialBackoffMillis Delay before the first retry. Doubles with every further retry.
+	 * @param maxBackoffMillis Longest delay between attempts
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+		setMaxAttempts(maxAttempts);
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Sets the number of attempts in total, including the first
+	 * @param maxAttempts The number of attempts, 1 to never retry
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+	}
+
+	public long getInitialBackoffMillis() {
+		return initialBackoffMillis;
+	}
+
+	public void setInitialBackoffMillis(long initialBackoffMillis) {
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	public void setMaxBackoffMillis(long maxBackoffMillis) {
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public double getBackoffMultiplier() {
+		return backoffMultiplier;
+	}
+
+	/**
+	 * Sets the factor the delay grows by with every retry
+	 * @param backoffMultiplier The factor, 2 by default
+	 */
+	public void setBackoffMultiplier(double backoffMultiplier) {
+		this.backoffMultiplier = backoffMultiplier;
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Sets how much of each delay may be randomly cut off
+	 * @param jitter Between 0 for fixed delays and 1 for delays anywhere between 0 and the full backoff. 0.5 by default.
+	 */
+	public void setJitter(double jitter) {
+		this.jitter = Math.max(0, Math.min(1, jitter));
+	}
+
+	/**
+	 * Gets the HTTP status codes that are retried
+	 * @return A copy of the status codes
+	 */
+	public int[] getRetryStatusCodes() {
+		return retryStatusCodes.clone();
+	}
+
+	/**
+	 * Sets the HTTP status codes that are retried
+	 * @param retryStatusCodes The status codes
+	 */
+	public void setRetryStatusCodes(int... retryStatusCodes) {
+		this.retryStatusCodes = retryStatusCodes.clone();
+	}
+
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * Turns hedging on. A second request is sent once the first has taken longer than this percentile
+	 * of recent request latencies.
+	 * @param hedgePercentile The percentile, e.g. 95. 0 turns hedging off (default).
+	 */
+	public void setHedgePercentile(double hedgePercentile) {
+		this.hedgePercentile = Math.max(0, Math.min(100, hedgePercentile));
+	}
+
+	public long getMinHedgeDelayMillis() {
+		return minHedgeDelayMillis;
+	}
+
+	/**
+	 * Sets the shortest time to wait before hedging, however fast recent requests were
+	 * @param minHedgeDelayMillis The delay in milliseconds
+	 */
+	public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+		this.minHedgeDelayMillis = minHedgeDelayMillis;
+	}
+
+	/**
+	 * Decides whether a failure is worth another attempt
+	 * @param e The failure
+	 * @return True if the request may succeed when sent again
+	 */
+	public boolean isRetryable(IOException e) {
+		if(e instanceof HttpStatusException){
+			int status = ((HttpStatusException)e).getStatusCode();
+			for(int code : retryStatusCodes){
+				if(code == status){
+					return true;
+				}
+			}
+			return false;
+		}
+		//Timeouts, refused or reset connections and streams cut off midway are transient; anything else, e.g.
+		//a cancellation, a missing file, a failed TLS handshake or a response that is not JSON, is not
+		return e instanceof SocketTimeoutException || e instanceof SocketException || e instanceof EOFException;
+	}
+
+	/**
+	 * Computes the delay before the next attempt
+	 * @param attempt The number of the attempt that just failed, starting at 1
+	 * @return The delay in milliseconds
+	 */
+	public long getBackoffMillis(int attempt) {
+		double backoff = initialBackoffMillis * Math.pow(backoffMultiplier, attempt - 1);
+		backoff = Math.min(backoff, maxBackoffMillis);
+		return (long)(backoff * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+	}
+
+	/**
+	 * Waits before the next attempt
+	 * @param attempt The number of the attempt that just failed, starting at 1
+	 * @throws InterruptedIOException If the thread is interrupted while waiting
+	 */
+	public void backoff(int attempt) throws InterruptedIOException {
+		try {
+			Thread.sleep(getBackoffMillis(attempt));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+
+	/**
+	 * Runs the work, retrying it as this policy allows.
+	 * @param attempt The work
+	 * @param <T> The result of the work
+	 * @return The result of the first successful attempt
+	 * @throws IOException The failure of the last attempt
+	 */
+	public <T> T call(Attempt<T> attempt) throws IOException {
+		for(int i = 1; ; i++){
+			try {
+				long start = System.nanoTime();
+				T result = attempt.run();
+				recordLatency((System.nanoTime() - start) / 1000000);
+				return result;
+			} catch (IOException e) {
+				if(i >= maxAttempts || !isRetryable(e)){
+					throw e;
+				}
+				backoff(i);
+			}
+		}
+	}
+
+	/**
+	 * Records how long a successful request took, for hedging
+	 * @param millis The latency in milliseconds
+	 */
+	public synchronized void recordLatency(long millis) {
+		latencies[latencyNext] = millis;
+		latencyNext = (latencyNext + 1) % LATENCY_WINDOW;
+		if(latencyCount < LATENCY_WINDOW){
+			latencyCount++;
+		}
+	}
+
+	/**
+	 * Gets the time after which a request should be hedged
+	 * @return The delay in milliseconds, or -1 if hedging is off or too few latencies have been recorded yet
+	 */
+	public long getHedgeDelayMillis() {
+		if(hedgePercentile <= 0){
+			return -1;
+		}
+		long[] sorted;
+		synchronized(this){
+			if(latencyCount < MIN_LATENCY_SAMPLES){
+				return -1;
+			}
+			sorted = Arrays.copyOf(latencies, latencyCount);
+		}
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(hedgePercentile / 100 * sorted.length) - 1;
+		return Math.max(minHedgeDelayMillis, sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.javaflacencoder.StreamConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to encode a minute of 44.1 kHz stereo audio for each number of encoding threads.
+ * <p>0 threads encodes on the calling thread. The speed-up over it is bounded by the number of cores of the
+ * machine running the benchmark. Run with
+ * {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=FlacStreamEncoderBenchmark}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FlacStreamEncoderBenchmark {
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int CHANNELS = 2;
+	private static final int FRAMES = SAMPLE_RATE * 60;
+
+	/**
+	 * Frames handed to the encoder per call, as FlacEncoder does
+	 */
+	private static final int CHUNK_FRAMES = 4096;
+
+	@Param({ "0", "1", "2", "4", "8" })
+	public int threads;
+
+	private StreamConfiguration configuration;
+	private int[] samples;
+	private int[] chunk;
+
+	@Setup
+	public void setUp() {
+		configuration = new StreamConfiguration();
+		configuration.setSampleRate(SAMPLE_RATE);
+		configuration.setBitsPerSample(16);
+		configuration.setChannelCount(CHANNELS);
+		Random random = new Random(1);
+		samples = new int[FRAMES * CHANNELS];
+		for(int i = 0; i < FRAMES; i++){
+			int tone = (int)(8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+			samples[i * CHANNELS] = tone + random.nextInt(2000) - 1000;
+			samples[i * CHANNELS + 1] = tone / 2 + random.nextInt(2000) - 1000;
+		}
+		chunk = new int[CHUNK_FRAMES * CHANNELS];
+	}
+
+	@Benchmark
+	public long encode() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		FlacStreamEncoder encoder = new FlacStreamEncoder(configuration, out);
+		encoder.setThreadCount(threads);
+		for(int frame = 0; frame < FRAMES; frame += CHUNK_FRAMES){
+			int count = Math.min(CHUNK_FRAMES, FRAMES - frame);
+			System.arraycopy(samples, frame * CHANNELS, chunk, 0, count * CHANNELS);
+			encoder.addSamples(chunk, count);
+		}
+		encoder.close();
+		return out.count;
+	}
+
+	/**
+	 * Discards the encoded stream, keeping its length
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.darkprograms.speech.recognizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import net.sourceforge.javaflacencoder.StreamConfiguration;
+
+import org.junit.Test;
+
+public class FlacStreamEncoderTest {
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int CHANNELS = 2;
+
+	/**
+	 * Ten seconds of stereo audio, which does not end on a block boundary
+	 */
+	private static final int FRAMES = SAMPLE_RATE * 10 + 1234;
+
+	@Test
+	public void threadedStreamIsIdenticalToSingleThreaded() throws IOException {
+		int[] samples = samples(FRAMES);
+		byte[] expected = encode(samples, 0);
+		for(int threads : new int[] { 1, 2, 4 }){
+			assertArrayEquals("Encoded with " + threads + " threads", expected, encode(samples, threads));
+		}
+	}
+
+	@Test
+	public void lastFrameIsNumberedAfterThePreviousOne() throws IOException {
+		byte[] flac = encode(samples(FRAMES), 4);
+		int last = -1;
+		int count = 0;
+		for(int i = 42; i < flac.length - 1; i++){
+			if(isFrameHeader(flac, i)){
+				assertEquals("Frame number of frame " + count, count, frameNumber(flac, i));
+				last = i;
+				count++;
+			}
+		}
+		assertTrue("No frames found", last > 0);
+		assertEquals(FRAMES / 4096 + 1, count);
+	}
+
+	@Test
+	public void streamShorterThanOneBlock() throws IOException {
+		int[] samples = samples(1000);
+		assertArrayEquals(encode(samples, 0), encode(samples, 2));
+	}
+
+	private static byte[] encode(int[] samples, int threads) throws IOException {
+		StreamConfiguration configuration = new StreamConfiguration();
+		configuration.setSampleRate(SAMPLE_RATE);
+		configuration.setBitsPerSample(16);
+		configuration.setChannelCount(CHANNELS);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FlacStreamEncoder encoder = new FlacStreamEncoder(configuration, out);
+		encoder.setThreadCount(threads);
+		//Odd sized chunks, so blocks fill up across calls
+		int[] chunk = new int[1000 * CHANNELS];
+		int frames = samples.length / CHANNELS;
+		for(int frame = 0; frame < frames; frame += 1000){
+			int count = Math.min(1000, frames - frame);
+			System.arraycopy(samples, frame * CHANNELS, chunk, 0, count * CHANNELS);
+			encoder.addSamples(chunk, count);
+		}
+		encoder.close();
+		return out.toByteArray();
+	}
+
+	private static int[] samples(int frames) {
+		Random random = new Random(7);
+		int[] samples = new int[frames * CHANNELS];
+		for(int i = 0; i < frames; i++){
+			int tone = (int)(8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+			samples[i * CHANNELS] = tone + random.nextInt(200) - 100;
+			samples[i * CHANNELS + 1] = tone / 2 + random.nextInt(200) - 100;
+		}
+		return samples;
+	}
+
+	/**
+	 * Checks the sync code and the CRC-8 of a frame header with a fixed block size, as this encoder writes
+	 */
+	private static boolean isFrameHeader(byte[] flac, int offset) {
+		if((flac[offset] & 0xFF) != 0xFF || (flac[offset + 1] & 0xFF) != 0xF8){
+			return false;
+		}
+		int end = offset + 4 + utf8Length(flac[offset + 4]);
+		int blockSizeBits = (flac[offset + 2] & 0xF0) >> 4;
+		if(blockSizeBits == 6){
+			end += 1;
+		}
+		else if(blockSizeBits == 7){
+			end += 2;
+		}
+		int sampleRateBits = flac[offset + 2] & 0x0F;
+		if(sampleRateBits == 12){
+			end += 1;
+		}
+		else if(sampleRateBits == 13 || sampleRateBits == 14){
+			end += 2;
+		}
+		if(end >= flac.length){
+			return false;
+		}
+		int crc = 0;
+		for(int i = offset; i < end; i++){
+			crc ^= flac[i] & 0xFF;
+			for(int bit = 0; bit < 8; bit++){
+				crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+			}
+		}
+		return crc == (flac[end] & 0xFF);
+	}
+
+	/**
+	 * Decodes the UTF-8 coded frame number of a frame header
+	 */
+	private static long frameNumber(byte[] flac, int offset) {
+		int first = flac[offset + 4] & 0xFF;
+		int length = utf8Length(flac[offset + 4]);
+		long value = length == 1 ? first : first & (0xFF >> (length + 1));
+		for(int i = 1; i < length; i++){
+			value = (value << 6) | (flac[offset + 4 + i] & 0x3F);
+		}
+		return value;
+	}
+
+	private static int utf8Length(byte first) {
+		int b = first & 0xFF;
+		if(b < 0x80){
+			return 1;
+		}
+		int length = 0;
+		while((b & 0x80) != 0){
+			length++;
+			b <<= 1;
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.darkprograms.speech.util.JsonPullParser;
+import com.darkprograms.speech.util.StringUtil;
+
+/**
+ * Time and allocation of parsing the lines of a duplex session, see {@link GoogleResponseParserTest#DUPLEX_LINES}.
+ * <p>{@link #substringSplit(Blackhole)} is what GSpeechDuplex did before: contains scans, substringBetween
+ * and a regex split of every line. {@link #pullParser(Blackhole)} is the current
+ * {@link GoogleResponseParser#parseLine(JsonPullParser, String, GoogleResponse)} with one parser reused for
+ * the session. Run with
+ * {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark="GoogleResponseLineBenchmark -prof gc"}
+ * and compare {@code gc.alloc.rate.norm} as well.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GoogleResponseLineBenchmark {
+
+	private final JsonPullParser parser = new JsonPullParser();
+
+	@Benchmark
+	public void substringSplit(Blackhole blackhole) {
+		for(String line : GoogleResponseParserTest.DUPLEX_LINES){
+			GoogleResponse gr = new GoogleResponse();
+			parseResponse(line, gr);
+			blackhole.consume(gr);
+		}
+	}
+
+	@Benchmark
+	public void pullParser(Blackhole blackhole) throws IOException {
+		for(String line : GoogleResponseParserTest.DUPLEX_LINES){
+			GoogleResponse gr = new GoogleResponse();
+			GoogleResponseParser.parseLine(parser, line, gr);
+			blackhole.consume(gr);
+		}
+	}
+
+	/**
+	 * The former GSpeechDuplex.parseResponse
+	 */
+	private static void parseResponse(String rawResponse, GoogleResponse gr){
+		if(rawResponse == null || !rawResponse.contains("\"result\"")
+				|| rawResponse.equals("{\"result\":[]}")){ return; }
+		gr.clearAlternatives();
+		if(rawResponse.contains("\"confidence\":")){
+			String confidence = StringUtil.substringBetween(rawResponse, "\"confidence\":", "}");
+			gr.setConfidence(confidence);
+		}
+		else{
+			gr.setConfidence(1d);
+		}
+		String response = StringUtil.substringBetween(rawResponse, "[{\"transcript\":\"", "\"}],");
+		if (response == null) {
+			response = StringUtil.substringBetween(rawResponse, "[{\"transcript\":\"", "\",\"");
+		}
+		gr.setResponse(response);
+		gr.setFinalResponse(rawResponse.contains("\"final\":true"));
+		String[] currentHypos = rawResponse.split("\\[\\{\"transcript\":\"");
+		for(int i = 2; i<currentHypos.length; i++){
+			String cleaned = currentHypos[i].substring(0, currentHypos[i].indexOf("\""));
+			gr.addAlternative(cleaned, Double.NaN);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.darkprograms.speech.recognizer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and allocation of parsing a recognizer response from its byte stream.
+ * <p>{@link #orgJson()} is what Recognizer did before: the lines are collected into a String array and each
+ * one is turned into an org.json tree, filling in the GoogleResponse the same way the parser does.
+ * {@link #pullParser()} is the current single pass with {@link GoogleResponseParser}. The allocation per
+ * operation is reported by the GC profiler, run with
+ * {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark="GoogleResponseParserBenchmark -prof gc"}
+ * and compare {@code gc.alloc.rate.norm}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GoogleResponseParserBenchmark {
+
+	private byte[] response;
+
+	@Setup
+	public void setUp() {
+		//An empty first line followed by the result, as the recognizer API answers
+		StringBuilder sb = new StringBuilder("{\"result\":[]}\n");
+		sb.append("{\"result\":[{\"alternative\":[");
+		for(int i = 0; i < 5; i++){
+			if(i > 0){
+				sb.append(',');
+			}
+			sb.append("{\"transcript\":\"this is alternative number ").append(i)
+					.append(" of the recognized sentence\"");
+			if(i == 0){
+				sb.append(",\"confidence\":0.93612242");
+			}
+			sb.append('}');
+		}
+		sb.append("],\"final\":true}],\"result_index\":0}\n");
+		response = sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public GoogleResponse orgJson() throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(response),
+				StandardCharsets.UTF_8));
+		List<String> completeResponse = new ArrayList<String>();
+		String line = br.readLine();
+		while(line != null){
+			completeResponse.add(line);
+			line = br.readLine();
+		}
+		br.close();
+		String[] rawResponse = completeResponse.toArray(new String[completeResponse.size()]);
+
+		GoogleResponse googleResponse = new GoogleResponse();
+		for(String s : rawResponse){
+			JSONObject jsonResponse = new JSONObject(s);
+			JSONArray jsonResultArray = jsonResponse.getJSONArray("result");
+			for(int i = 0; i < jsonResultArray.length(); i++){
+				JSONObject jsonAlternativeObject = jsonResultArray.getJSONObject(i);
+				JSONArray jsonAlternativeArray = jsonAlternativeObject.getJSONArray("alternative");
+				double prevConfidence = 0;
+				for(int j = 0; j < jsonAlternativeArray.length(); j++){
+					JSONObject jsonTranscriptObject = jsonAlternativeArray.getJSONObject(j);
+					String transcript = jsonTranscriptObject.optString("transcript", "");
+					double confidence = jsonTranscriptObject.optDouble("confidence", 0.0);
+					if(confidence > prevConfidence){
+						googleResponse.setResponse(transcript);
+						googleResponse.setConfidence(confidence);
+						prevConfidence = confidence;
+					}
+					else{
+						googleResponse.addAlternative(transcript, confidence);
+					}
+				}
+			}
+		}
+		return googleResponse;
+	}
+
+	@Benchmark
+	public GoogleResponse pullParser() throws IOException {
+		GoogleResponse googleResponse = new GoogleResponse();
+		Reader reader = new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8);
+		try {
+			GoogleResponseParser.parse(reader, googleResponse);
+		} finally {
+			reader.close();
+		}
+		return googleResponse;
+	}
+
+}
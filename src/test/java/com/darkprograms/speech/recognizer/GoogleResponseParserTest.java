@@ -0,0 +1,183 @@
+package com.darkprograms.speech.recognizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.darkprograms.speech.util.JsonPullParser;
+
+public class GoogleResponseParserTest {
+
+	/**
+	 * Lines of one duplex session as Google streams them: an empty result first, interim results with a
+	 * stability, and a final result with a confidence and alternatives
+	 */
+	static final String[] DUPLEX_LINES = {
+		"{\"result\":[]}",
+		"{\"result\":[{\"alternative\":[{\"transcript\":\"hello\"}],\"stability\":0.0099999998}],\"result_index\":0}",
+		"{\"result\":[{\"alternative\":[{\"transcript\":\"hello how\"}],\"stability\":0.0099999998}],\"result_index\":0}",
+		"{\"result\":[{\"alternative\":[{\"transcript\":\"hello how are\"}],\"stability\":0.89999998},"
+				+ "{\"alternative\":[{\"transcript\":\" you\"}],\"stability\":0.0099999998}],\"result_index\":0}",
+		"{\"result\":[{\"alternative\":[{\"transcript\":\"hello how are you\",\"confidence\":0.95803022},"
+				+ "{\"transcript\":\"hello how are u\"},{\"transcript\":\"hello who are you\"}],\"final\":true}],"
+				+ "\"result_index\":0}"
+	};
+
+	/**
+	 * Lines of a chunked request, which has no interim results
+	 */
+	static final String[] CHUNKED_LINES = {
+		"{\"result\":[]}",
+		"{\"result\":[{\"alternative\":[{\"transcript\":\"one, two, three\",\"confidence\":0.87123364},"
+				+ "{\"transcript\":\"one two three\"},{\"transcript\":\"1, 2, 3\"}],\"final\":true}],\"result_index\":0}"
+	};
+
+	@Test
+	public void emptyResultLeavesTheResponseAsItIs() throws IOException {
+		GoogleResponse gr = parseLine(DUPLEX_LINES[0]);
+		assertNull(gr.getResponse());
+		assertTrue(gr.isFinalResponse());
+		assertEquals(Collections.emptyList(), gr.getOtherPossibleResponses());
+
+		gr = parseLine("{\"result\":[],\"result_index\":0}");
+		assertNull(gr.getResponse());
+	}
+
+	@Test
+	public void interimLine() throws IOException {
+		GoogleResponse gr = parseLine(DUPLEX_LINES[1]);
+		assertEquals("hello", gr.getResponse());
+		assertFalse(gr.isFinalResponse());
+		assertEquals(Collections.emptyList(), gr.getOtherPossibleResponses());
+	}
+
+	@Test
+	public void missingConfidenceCountsAsCertain() throws IOException {
+		GoogleResponse gr = parseLine(DUPLEX_LINES[2]);
+		assertEquals(1d, gr.getConfidenceValue(), 0);
+		assertEquals("1.0", gr.getConfidence());
+	}
+
+	@Test
+	public void laterResultsBecomeAlternatives() throws IOException {
+		GoogleResponse gr = parseLine(DUPLEX_LINES[3]);
+		assertEquals("hello how are", gr.getResponse());
+		assertEquals(Collections.singletonList(" you"), gr.getOtherPossibleResponses());
+		assertFalse(gr.isFinalResponse());
+	}
+
+	@Test
+	public void finalLineWithConfidenceAndAlternatives() throws IOException {
+		GoogleResponse gr = parseLine(DUPLEX_LINES[4]);
+		assertTrue(gr.isFinalResponse());
+		assertEquals("hello how are you", gr.getResponse());
+		assertEquals(0.95803022, gr.getConfidenceValue(), 1e-9);
+		assertEquals(Arrays.asList("hello how are u", "hello who are you"), gr.getOtherPossibleResponses());
+		assertTrue(Double.isNaN(gr.getOtherPossibleConfidence(0)));
+		assertEquals(Arrays.asList("hello how are you", "hello how are u", "hello who are you"),
+				gr.getAllPossibleResponses());
+	}
+
+	@Test
+	public void commasStayInTheTranscript() throws IOException {
+		GoogleResponse gr = parseLine(CHUNKED_LINES[1]);
+		assertEquals("one, two, three", gr.getResponse());
+		assertEquals(0.87123364, gr.getConfidenceValue(), 1e-9);
+		assertEquals(Arrays.asList("one two three", "1, 2, 3"), gr.getOtherPossibleResponses());
+	}
+
+	@Test
+	public void escapesAreResolved() throws IOException {
+		GoogleResponse gr = parseLine("{\"result\":[{\"alternative\":[{\"transcript\":"
+				+ "\"she said \\\"caf\\u00e9\\\" \\/ \\\\ done\\n\"}],\"final\":true}],\"result_index\":0}");
+		assertEquals("she said \"caf\u00e9\" / \\ done\n", gr.getResponse());
+		assertTrue(gr.isFinalResponse());
+	}
+
+	@Test
+	public void unknownFieldsAreSkipped() throws IOException {
+		GoogleResponse gr = parseLine("{\"result\":[{\"alternative\":[{\"words\":[{\"w\":\"hi\",\"t\":[0,1]}],"
+				+ "\"transcript\":\"hi\",\"confidence\":null}],\"final\":false,\"extra\":{\"a\":[1,{}]}}],"
+				+ "\"result_index\":0}");
+		assertEquals("hi", gr.getResponse());
+		assertEquals(1d, gr.getConfidenceValue(), 0);
+		assertFalse(gr.isFinalResponse());
+	}
+
+	@Test
+	public void reusedParserReadsEveryLineAsAFreshOne() throws IOException {
+		JsonPullParser parser = new JsonPullParser();
+		String[][] corpora = { DUPLEX_LINES, CHUNKED_LINES, DUPLEX_LINES };
+		for(String[] lines : corpora){
+			for(String line : lines){
+				GoogleResponse reused = new GoogleResponse();
+				GoogleResponseParser.parseLine(parser, line, reused);
+				GoogleResponse fresh = parseLine(line);
+				assertEquals(line, fresh.getResponse(), reused.getResponse());
+				assertEquals(line, fresh.getAllPossibleResponses(), reused.getAllPossibleResponses());
+				assertEquals(line, fresh.isFinalResponse(), reused.isFinalResponse());
+				assertEquals(line, fresh.getConfidenceValue(), reused.getConfidenceValue(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void lineThatIsNotJsonFails() {
+		try {
+			parseLine("<html>Service Unavailable</html>");
+			fail("Parsed a line that is not JSON");
+		} catch (IOException e) {
+			//Expected
+		}
+	}
+
+	@Test
+	public void recognizerResponsePicksTheMostConfidentAlternative() throws IOException {
+		GoogleResponse gr = new GoogleResponse();
+		GoogleResponseParser.parse(new StringReader("{\"result\":[]}\n"
+				+ "{\"result\":[{\"alternative\":[{\"transcript\":\"wreck a nice beach\",\"confidence\":0.41},"
+				+ "{\"transcript\":\"recognize speech\",\"confidence\":0.92},{\"transcript\":\"recognise, speech\"}],"
+				+ "\"final\":true}],\"result_index\":0}\n"), gr);
+		assertEquals("recognize speech", gr.getResponse());
+		assertEquals(0.92, gr.getConfidenceValue(), 1e-9);
+		assertEquals(Arrays.asList("recognise, speech"), gr.getOtherPossibleResponses());
+	}
+
+	@Test
+	public void recognizerResponseWithEmptyResultsOnly() throws IOException {
+		GoogleResponse gr = new GoogleResponse();
+		GoogleResponseParser.parse(new StringReader("{\"result\":[]}\n{\"result\":[]}\n"), gr);
+		assertNull(gr.getResponse());
+		assertEquals(Collections.emptyList(), gr.getOtherPossibleResponses());
+	}
+
+	@Test
+	public void recognizerResponseLongerThanTheReadBuffer() throws IOException {
+		StringBuilder transcript = new StringBuilder();
+		for(int i = 0; i < 3000; i++){
+			transcript.append("word").append(i).append(i % 7 == 0 ? "\\\"" : " ");
+		}
+		GoogleResponse gr = new GoogleResponse();
+		GoogleResponseParser.parse(new StringReader("{\"result\":[]}\n{\"result\":[{\"alternative\":[{\"transcript\":\""
+				+ transcript + "\",\"confidence\":0.5},{\"transcript\":\"short\"}],\"final\":true}],\"result_index\":0}\n"), gr);
+		assertEquals(transcript.toString().replace("\\\"", "\""), gr.getResponse());
+		assertEquals(0.5, gr.getConfidenceValue(), 0);
+		assertEquals(Collections.singletonList("short"), gr.getOtherPossibleResponses());
+	}
+
+	private static GoogleResponse parseLine(String line) throws IOException {
+		GoogleResponse gr = new GoogleResponse();
+		GoogleResponseParser.parseLine(new JsonPullParser(), line, gr);
+		return gr;
+	}
+
+}
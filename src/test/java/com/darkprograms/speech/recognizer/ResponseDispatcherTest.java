@@ -0,0 +1,250 @@
+package com.darkprograms.speech.recognizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ResponseDispatcherTest {
+
+	private final ExecutorService readers = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		readers.shutdownNow();
+	}
+
+	@Test
+	public void responsesOfATargetArriveInOrder() throws Exception {
+		ResponseDispatcher dispatcher = new ResponseDispatcher();
+		dispatcher.setOverflowPolicy(ResponseDispatcher.OverflowPolicy.BLOCK);
+		dispatcher.setCapacity(8);
+		final List<Recorder> targets = new ArrayList<Recorder>();
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		for(int t = 0; t < 4; t++){
+			final Recorder target = new Recorder();
+			targets.add(target);
+			running.add(dispatch(dispatcher, target, 500, "t" + t + "-"));
+		}
+		for(Future<?> future : running){
+			future.get(10, TimeUnit.SECONDS);
+		}
+		for(int t = 0; t < targets.size(); t++){
+			dispatcher.flush(targets.get(t));
+			List<String> expected = new ArrayList<String>();
+			for(int i = 0; i < 500; i++){
+				expected.add("t" + t + "-" + i);
+			}
+			assertEquals(expected, targets.get(t).responses);
+		}
+		assertEquals(2000, dispatcher.getDeliveredCount());
+	}
+
+	@Test
+	public void slowTargetDoesNotHoldUpOthers() throws Exception {
+		ResponseDispatcher dispatcher = new ResponseDispatcher();
+		dispatcher.setOverflowPolicy(ResponseDispatcher.OverflowPolicy.BLOCK);
+		dispatcher.setCapacity(2);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		Recorder slow = new Recorder() {
+			@Override
+			public void onResponse(GoogleResponse gr) {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.onResponse(gr);
+			}
+		};
+		Future<?> slowReader = dispatch(dispatcher, slow, 10, "slow");
+		Recorder fast = new Recorder();
+		Future<?> fastReader = dispatch(dispatcher, fast, 100, "fast");
+		fastReader.get(5, TimeUnit.SECONDS);
+		dispatcher.flush(fast);
+		assertEquals(100, fast.responses.size());
+		try {
+			slowReader.get(200, TimeUnit.MILLISECONDS);
+			throw new AssertionError("The reader of the slow target did not wait for room");
+		} catch (TimeoutException e) {
+			//Expected with BLOCK and a full queue
+		}
+		unblock.countDown();
+		slowReader.get(5, TimeUnit.SECONDS);
+		dispatcher.flush(slow);
+		assertEquals(10, slow.responses.size());
+	}
+
+	@Test
+	public void interimWindowIsPerTarget() throws Exception {
+		ResponseDispatcher dispatcher = new ResponseDispatcher();
+		dispatcher.setInterimWindowMillis(200);
+		Recorder first = new Recorder();
+		Recorder second = new Recorder();
+		for(int i = 0; i < 5; i++){
+			dispatcher.dispatch(response("a" + i, false), first);
+			dispatcher.dispatch(response("b" + i, false), second);
+		}
+		Thread.sleep(100);
+		//The first interim response of each target passes at once, the rest waits for the window
+		assertEquals(Collections.singletonList("a0"), first.snapshot());
+		assertEquals(Collections.singletonList("b0"), second.snapshot());
+		dispatcher.dispatch(response("a-final", true), first);
+		dispatcher.flush(first);
+		assertEquals(Arrays.asList("a0", "a-final"), first.snapshot());
+		Thread.sleep(250);
+		dispatcher.flush(second);
+		assertEquals(Arrays.asList("b0", "b4"), second.snapshot());
+		//The held back a4 was made obsolete by the final response
+		assertEquals(Arrays.asList("a0", "a-final"), first.snapshot());
+	}
+
+	@Test
+	public void interimResponsesAreCoalescedWhenTheQueueIsFull() throws Exception {
+		ResponseDispatcher dispatcher = new ResponseDispatcher();
+		dispatcher.setCapacity(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		Recorder target = new Recorder() {
+			@Override
+			public void onResponse(GoogleResponse gr) {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.onResponse(gr);
+			}
+		};
+		dispatcher.dispatch(response("first", false), target);
+		//Waits for the first response to be taken from the queue
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(dispatcher.getQueuedCount() > 0 && System.nanoTime() < deadline){
+			Thread.sleep(1);
+		}
+		for(int i = 0; i < 10; i++){
+			dispatcher.dispatch(response("interim" + i, false), target);
+		}
+		unblock.countDown();
+		dispatcher.flush(target);
+		assertEquals(Arrays.asList("first", "interim9"), target.snapshot());
+		assertEquals(9, dispatcher.getCoalescedCount());
+	}
+
+	@Test
+	public void flushDoesNotWaitForOtherTargets() throws Exception {
+		ResponseDispatcher dispatcher = new ResponseDispatcher();
+		final CountDownLatch unblock = new CountDownLatch(1);
+		Recorder stuck = new Recorder() {
+			@Override
+			public void onResponse(GoogleResponse gr) {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		Recorder other = new Recorder();
+		dispatcher.dispatch(response("stuck", true), stuck);
+		dispatcher.dispatch(response("other", true), other);
+		long start = System.nanoTime();
+		dispatcher.flush(other);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+		assertEquals(Collections.singletonList("other"), other.snapshot());
+		assertFalse(dispatcher.getDeliveredCount() > 1);
+		unblock.countDown();
+	}
+
+	@Test
+	public void whenDeliveredRunsAfterTheQueuedResponses() throws Exception {
+		ResponseDispatcher dispatcher = new ResponseDispatcher();
+		dispatcher.setInterimWindowMillis(10000);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		final Recorder target = new Recorder() {
+			@Override
+			public void onResponse(GoogleResponse gr) {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.onResponse(gr);
+			}
+		};
+		dispatcher.dispatch(response("first", false), target);
+		dispatcher.dispatch(response("held", false), target);
+		final List<String> seen = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+		//Returns at once although the listener is stuck
+		dispatcher.whenDelivered(target, new Runnable() {
+			public void run() {
+				seen.addAll(target.snapshot());
+				done.countDown();
+			}
+		});
+		assertEquals(1, done.getCount());
+		unblock.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		//The interim response held back by the window is delivered before the task runs
+		assertEquals(Arrays.asList("first", "held"), seen);
+
+		final CountDownLatch idle = new CountDownLatch(1);
+		dispatcher.whenDelivered(new Recorder(), new Runnable() {
+			public void run() {
+				idle.countDown();
+			}
+		});
+		assertEquals(0, idle.getCount());
+	}
+
+	private Future<?> dispatch(final ResponseDispatcher dispatcher, final GSpeechResponseListener target,
+			final int count, final String prefix) {
+		return readers.submit(new Callable<Void>() {
+			public Void call() throws InterruptedException {
+				for(int i = 0; i < count; i++){
+					dispatcher.dispatch(response(prefix + i, true), target);
+				}
+				return null;
+			}
+		});
+	}
+
+	private static GoogleResponse response(String transcript, boolean finalResponse) {
+		GoogleResponse gr = new GoogleResponse();
+		gr.setResponse(transcript);
+		gr.setFinalResponse(finalResponse);
+		return gr;
+	}
+
+	/**
+	 * Keeps the transcripts it receives
+	 */
+	private static class Recorder implements GSpeechResponseListener {
+		final List<String> responses = Collections.synchronizedList(new ArrayList<String>());
+
+		public void onResponse(GoogleResponse gr) {
+			responses.add(gr.getResponse());
+		}
+
+		List<String> snapshot() {
+			synchronized(responses){
+				return new ArrayList<String>(responses);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.darkprograms.speech.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Samples per second converted from a 16 bit little endian mono wave stream, the format the old
+ * conversion supported.
+ * <p>{@link #perFrame()} is the conversion FlacEncoder used before: one read per frame and a ByteBuffer
+ * wrapper per sample. {@link #bulk()} is the current one: blocks of 4096 frames decoded by {@link PcmDecoder}
+ * into a reused array. {@link #decodeOnly()} leaves out the stream.</p>
+ * <p>Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=PcmDecoderBenchmark}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(PcmDecoderBenchmark.SAMPLES)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmDecoderBenchmark {
+
+	/**
+	 * Samples converted per invocation, about six seconds at 44.1 kHz
+	 */
+	static final int SAMPLES = 1 << 18;
+
+	private static final int BLOCK_SIZE = 4096;
+
+	private final AudioFormat format = new AudioFormat(44100, 16, 1, true, false);
+	private byte[] pcm;
+	private byte[] block;
+	private int[] samples;
+	private PcmDecoder decoder;
+
+	@Setup
+	public void setUp() {
+		pcm = new byte[SAMPLES * 2];
+		new Random(42).nextBytes(pcm);
+		block = new byte[BLOCK_SIZE * 2];
+		samples = new int[SAMPLES];
+		decoder = new PcmDecoder(format);
+	}
+
+	@Benchmark
+	public int perFrame() throws IOException {
+		AudioInputStream in = stream();
+		byte[] samplesIn = new byte[format.getFrameSize()];
+		int i = 0;
+		while(in.read(samplesIn, 0, samplesIn.length) != -1){
+			ByteBuffer bb = ByteBuffer.wrap(samplesIn);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+			samples[i++] = bb.getShort();
+		}
+		return samples[i - 1];
+	}
+
+	@Benchmark
+	public int bulk() throws IOException {
+		AudioInputStream in = stream();
+		int bytesRead;
+		int i = 0;
+		while((bytesRead = in.read(block, 0, block.length)) != -1){
+			i += decoder.decode(block, 0, bytesRead, samples);
+		}
+		return i + samples[0];
+	}
+
+	@Benchmark
+	public int decodeOnly() {
+		return decoder.decode(pcm, 0, pcm.length, samples) + samples[0];
+	}
+
+	private AudioInputStream stream() {
+		return new AudioInputStream(new ByteArrayInputStream(pcm), format, SAMPLES);
+	}
+
+}
@@ -0,0 +1,194 @@
+package com.darkprograms.speech.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpTransportTest {
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private ExecutorService clientThreads;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		//Answers with the client's port, which tells whether a socket was reused
+		server.createContext("/port", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, String.valueOf(exchange.getRemoteAddress().getPort()));
+			}
+		});
+		server.createContext("/error", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 500, "{\"error\":\"something went wrong on the server\"}");
+			}
+		});
+		server.createContext("/slow", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				respond(exchange, 200, "late");
+			}
+		});
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+		clientThreads = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		clientThreads.shutdownNow();
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	@Test
+	public void connectionIsReusedAfterTheResponseIsRead() throws IOException {
+		PooledHttpTransport transport = new PooledHttpTransport(5000, 5000, 0);
+		String first = get(transport, "/port");
+		String second = get(transport, "/port");
+		assertEquals("Second request used a new socket", first, second);
+	}
+
+	@Test
+	public void errorBodyIsDrainedOnRelease() throws IOException {
+		PooledHttpTransport transport = new PooledHttpTransport(5000, 5000, 0);
+		String before = get(transport, "/port");
+		HttpURLConnection connection = transport.openConnection(url("/error"));
+		assertEquals(500, connection.getResponseCode());
+		//The error body is left unread for the transport to drain
+		transport.releaseConnection(connection, true);
+		assertEquals("Socket was not reused after an error response", before, get(transport, "/port"));
+	}
+
+	@Test
+	public void timeoutsAreApplied() throws IOException {
+		PooledHttpTransport transport = new PooledHttpTransport(3000, 500, 0);
+		HttpURLConnection connection = transport.openConnection(url("/slow"));
+		assertEquals(3000, connection.getConnectTimeout());
+		assertEquals(500, connection.getReadTimeout());
+		long start = System.nanoTime();
+		try {
+			connection.getInputStream();
+			fail("Read did not time out");
+		} catch (SocketTimeoutException e) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("Timed out after " + elapsed + " ms", elapsed < 1900);
+		} finally {
+			transport.releaseConnection(connection, false);
+		}
+	}
+
+	@Test
+	public void connectionsPerHostAreLimited() throws Exception {
+		final PooledHttpTransport transport = new PooledHttpTransport(5000, 5000, 1);
+		HttpURLConnection held = transport.openConnection(url("/port"));
+		Future<String> waiting = clientThreads.submit(new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				return get(transport, "/port");
+			}
+		});
+		try {
+			waiting.get(300, TimeUnit.MILLISECONDS);
+			fail("Second connection was opened while the limit was reached");
+		} catch (TimeoutException e) {
+			//Expected, the host has no free connection
+		}
+		read(held.getInputStream());
+		transport.releaseConnection(held, true);
+		assertFalse(waiting.get(5, TimeUnit.SECONDS).isEmpty());
+	}
+
+	@Test
+	public void waitingForAConnectionTimesOut() throws IOException {
+		PooledHttpTransport transport = new PooledHttpTransport(200, 5000, 1);
+		HttpURLConnection held = transport.openConnection(url("/port"));
+		try {
+			transport.openConnection(url("/port"));
+			fail("Second connection was opened while the limit was reached");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Timed out waiting"));
+		} finally {
+			transport.releaseConnection(held, false);
+		}
+		//The permit is back once the held connection is released
+		assertFalse(get(transport, "/port").isEmpty());
+	}
+
+	private URL url(String path) throws IOException {
+		return new URL("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+	}
+
+	/**
+	 * Reads a response to the end and releases its connection for reuse
+	 */
+	private String get(HttpTransport transport, String path) throws IOException {
+		HttpURLConnection connection = transport.openConnection(url(path));
+		boolean reusable = false;
+		try {
+			String body = read(connection.getInputStream());
+			reusable = true;
+			return body;
+		} finally {
+			transport.releaseConnection(connection, reusable);
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while((read = in.read(buffer)) != -1){
+				out.write(buffer, 0, read);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.darkprograms.speech.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	private final RetryPolicy policy = new RetryPolicy();
+
+	@Test
+	public void transientFailuresAreRetried() {
+		assertTrue(policy.isRetryable(new SocketTimeoutException("Read timed out")));
+		assertTrue(policy.isRetryable(new ConnectException("Connection refused")));
+		assertTrue(policy.isRetryable(new SocketException("Connection reset")));
+		assertTrue(policy.isRetryable(new EOFException("Unexpected end of file from server")));
+		assertTrue(policy.isRetryable(new HttpStatusException(503, "Service Unavailable")));
+	}
+
+	@Test
+	public void permanentFailuresAreNotRetried() {
+		assertFalse(policy.isRetryable(new IOException("Unexpected character in JSON")));
+		assertFalse(policy.isRetryable(new SSLHandshakeException("PKIX path building failed")));
+		assertFalse(policy.isRetryable(new ProtocolException("Server redirected too many times")));
+		assertFalse(policy.isRetryable(new InterruptedIOException("Upload stopped")));
+		assertFalse(policy.isRetryable(new FileNotFoundException("audio.flac")));
+		assertFalse(policy.isRetryable(new UnknownHostException("www.google.com")));
+		assertFalse(policy.isRetryable(new RateLimitException(1000)));
+		assertFalse(policy.isRetryable(new HttpStatusException(400, "Bad Request")));
+	}
+
+	@Test
+	public void configuredStatusCodesAreRetried() {
+		policy.setRetryStatusCodes(500);
+		assertTrue(policy.isRetryable(new HttpStatusException(500, "Internal Server Error")));
+		assertFalse(policy.isRetryable(new HttpStatusException(503, "Service Unavailable")));
+	}
+
+}